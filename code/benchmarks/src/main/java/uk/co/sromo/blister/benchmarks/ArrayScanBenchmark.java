@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPArray;
+import uk.co.sromo.blister.BPInt;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistException;
+
+/**
+ * Measures walking a decoded 100,000 item array with an index loop, which is how a lot of
+ * client code reads arrays.
+ */
+@State(Scope.Benchmark)
+public class ArrayScanBenchmark {
+
+    private BPArray array;
+
+    @Setup
+    public void setUp() throws BinaryPlistException {
+        BPArray source = new BPArray();
+        for (int i=0; i< 100000; i++) {
+            source.with(i);
+        }
+        array = (BPArray) BinaryPlist.decode(BinaryPlist.encode(source));
+    }
+
+    @Benchmark
+    public long indexedScan() {
+        long total = 0;
+        for (int i=0; i< array.size(); i++) {
+            total += ((BPInt) array.get(i)).getValue();
+        }
+        return total;
+    }
+}
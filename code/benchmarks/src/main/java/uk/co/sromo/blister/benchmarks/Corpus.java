@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import uk.co.sromo.blister.BPArray;
+import uk.co.sromo.blister.BPData;
+import uk.co.sromo.blister.BPDict;
+import uk.co.sromo.blister.BPItem;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistException;
+
+import java.util.Random;
+
+/**
+ * Synthetic plists for the benchmarks, each meant to stress a different part of the
+ * decoder and encoder. They're generated from a fixed seed so every run sees the same data.
+ */
+public enum Corpus {
+
+    /** A few dozen keys of mixed types, like a typical preferences file */
+    SMALL_CONFIG {
+        BPItem build(Random random) {
+            BPDict root = new BPDict();
+            for (int i=0; i< 30; i++) {
+                switch (i % 3) {
+                    case 0: root.with("setting" + i, "value" + random.nextInt(1000)); break;
+                    case 1: root.with("setting" + i, random.nextInt()); break;
+                    default: root.with("setting" + i, random.nextBoolean()); break;
+                }
+            }
+            root.with("recent", new BPArray().with("one").with("two").with("three"));
+            return root;
+        }
+    },
+
+    /** A single dict with lots of distinct keys, for lookups and key handling */
+    WIDE_DICT {
+        BPItem build(Random random) {
+            BPDict root = new BPDict();
+            for (int i=0; i< 20000; i++) {
+                root.with("key-" + i + "-" + random.nextInt(100000), random.nextInt());
+            }
+            return root;
+        }
+    },
+
+    /** Arrays and dicts nested a few hundred deep, so collection handling dominates */
+    DEEP_NESTING {
+        BPItem build(Random random) {
+            BPDict root = new BPDict();
+            BPDict current = root;
+            for (int i=0; i< 500; i++) {
+                BPDict child = new BPDict().with("depth", i);
+                current.with("items", new BPArray().with(i).with("level" + i).with(child));
+                current = child;
+            }
+            return root;
+        }
+    },
+
+    /** A handful of large data blobs, so copying bytes dominates */
+    LARGE_DATA {
+        BPItem build(Random random) {
+            BPArray root = new BPArray();
+            for (int i=0; i< 16; i++) {
+                byte[] blob = new byte[256 * 1024];
+                random.nextBytes(blob);
+                root.with(new BPData(blob));
+            }
+            return root;
+        }
+    },
+
+    /** Lots of non-ASCII strings, which are stored as UTF-16 */
+    UNICODE_STRINGS {
+        BPItem build(Random random) {
+            BPArray root = new BPArray();
+            for (int i=0; i< 5000; i++) {
+                StringBuilder sb = new StringBuilder();
+                for (int j=0; j< 40; j++) {
+                    sb.append(SAMPLE_TEXT.charAt(random.nextInt(SAMPLE_TEXT.length())));
+                }
+                root.with(new BPDict().with("name" + i, sb.toString()));
+            }
+            return root;
+        }
+    };
+
+    private final static String SAMPLE_TEXT = "Ỡuitὲ InƬerestіng ṜaŦherḒull ©®ÀÈÌÒÙ 日本語テキスト";
+
+    abstract BPItem build(Random random);
+
+    /**
+     * Builds a fresh copy of this plist.
+     */
+    public BPItem build() {
+        return build(new Random(name().hashCode()));
+    }
+
+    /**
+     * Builds this plist and encodes it.
+     */
+    public byte[] encoded() throws BinaryPlistException {
+        return BinaryPlist.encode(build());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPItem;
+import uk.co.sromo.blister.BPStringPool;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistCache;
+import uk.co.sromo.blister.BinaryPlistDecoder;
+import uk.co.sromo.blister.BinaryPlistException;
+import uk.co.sromo.blister.BinaryPlistHandlerSupport;
+import uk.co.sromo.blister.BinaryPlistReader;
+
+/**
+ * Measures decoding each plist in the corpus from a byte array, with a new decoder each
+ * time, with one decoder reused and through a cache, and for comparison, streaming through it with a
+ * BinaryPlistReader.
+ */
+@State(Scope.Benchmark)
+public class DecodeBenchmark {
+
+    @Param
+    public Corpus corpus;
+
+    private byte[] bytes;
+    private final BinaryPlistDecoder.Options pooled = new BinaryPlistDecoder.Options().stringPool(new BPStringPool());
+    private final BinaryPlistDecoder.Options parallel = new BinaryPlistDecoder.Options().parallel(true);
+    private final BinaryPlistDecoder.Options frozen = new BinaryPlistDecoder.Options().frozen(true);
+    private final BinaryPlistCache cache = new BinaryPlistCache(64L << 20);
+
+    @Setup
+    public void setUp() throws BinaryPlistException {
+        bytes = corpus.encoded();
+    }
+
+    @Benchmark
+    public BPItem decode() throws BinaryPlistException {
+        return BinaryPlist.decode(bytes);
+    }
+
+    @Benchmark
+    public BPItem decodeWithStringPool() throws BinaryPlistException {
+        return BinaryPlist.decode(bytes, pooled);
+    }
+
+    @Benchmark
+    public BPItem decodeInParallel() throws BinaryPlistException {
+        return BinaryPlist.decode(bytes, parallel);
+    }
+
+    @Benchmark
+    public BPItem decodeFrozen() throws BinaryPlistException {
+        return BinaryPlist.decode(bytes, frozen);
+    }
+
+    // every call after the first is a hit
+    @Benchmark
+    public BPItem decodeThroughCache() throws BinaryPlistException {
+        return cache.decode(bytes);
+    }
+
+    @Benchmark
+    public BPItem decodeReusingDecoder(Reused reused) throws BinaryPlistException {
+        return reused.decoder.decode(bytes);
+    }
+
+    @Benchmark
+    public int stream() throws BinaryPlistException {
+        CountingHandler handler = new CountingHandler();
+        new BinaryPlistReader(bytes).read(handler);
+        return handler.strings;
+    }
+
+    // decoders aren't thread safe, so each thread gets its own
+    @State(Scope.Thread)
+    public static class Reused {
+        final BinaryPlistDecoder decoder = new BinaryPlistDecoder();
+    }
+
+    private static class CountingHandler extends BinaryPlistHandlerSupport {
+        int strings = 0;
+
+        @Override
+        public void string(CharSequence value) {
+            strings += value.length();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPDict;
+import uk.co.sromo.blister.BPItem;
+import uk.co.sromo.blister.BPString;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistException;
+
+/**
+ * Measures looking up keys in a decoded dict, by String (which is the usual way) and by
+ * BPString, for both a small and a wide dict. Half the lookups are for missing keys, and
+ * the present ones all have int values so that the typed getter can be used.
+ */
+@State(Scope.Benchmark)
+public class DictLookupBenchmark {
+
+    @Param({"SMALL_CONFIG", "WIDE_DICT"})
+    public Corpus corpus;
+
+    private BPDict dict;
+    private String[] keys;
+    private BPString[] bpKeys;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws BinaryPlistException {
+        dict = (BPDict) BinaryPlist.decode(corpus.encoded());
+        keys = new String[1024];
+        bpKeys = new BPString[keys.length];
+        int i = 0;
+        for (BPString key : dict.keySet()) {
+            if (i >= keys.length) {
+                break;
+            }
+            if (dict.get(key).getType() != BPItem.Type.Int) {
+                continue;
+            }
+            keys[i] = key.getValue();
+            keys[i + 1] = key.getValue() + "-missing";
+            i += 2;
+        }
+        for (int j=0; j< keys.length; j++) {
+            if (keys[j] == null) {
+                keys[j] = keys[j % i];
+            }
+            bpKeys[j] = BPString.get(keys[j]);
+        }
+    }
+
+    @Benchmark
+    public BPItem lookupByString() {
+        return dict.get(keys[next++ & (keys.length - 1)]);
+    }
+
+    @Benchmark
+    public int lookupIntByString() throws BinaryPlistException {
+        return dict.get(keys[next++ & (keys.length - 1)], -1);
+    }
+
+    @Benchmark
+    public BPItem lookupByBPString() {
+        return dict.get(bpKeys[next++ & (bpKeys.length - 1)]);
+    }
+}
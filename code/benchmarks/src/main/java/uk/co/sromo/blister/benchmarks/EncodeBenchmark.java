@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPItem;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistEncoder;
+import uk.co.sromo.blister.BinaryPlistException;
+
+/**
+ * Measures encoding each plist in the corpus to a byte array, with a new encoder each time
+ * and with one encoder reused.
+ */
+@State(Scope.Benchmark)
+public class EncodeBenchmark {
+
+    @Param
+    public Corpus corpus;
+
+    private BPItem root;
+    private final BinaryPlistEncoder.Options parallel = new BinaryPlistEncoder.Options().parallel(true);
+
+    @Setup
+    public void setUp() {
+        root = corpus.build();
+    }
+
+    @Benchmark
+    public byte[] encode() throws BinaryPlistException {
+        return BinaryPlist.encode(root);
+    }
+
+    @Benchmark
+    public byte[] encodeInParallel() throws BinaryPlistException {
+        return BinaryPlist.encode(root, parallel);
+    }
+
+    @Benchmark
+    public byte[] encodeReusingEncoder(Reused reused) throws BinaryPlistException {
+        return reused.encoder.encode(root);
+    }
+
+    // encoders aren't thread safe, so each thread gets its own
+    @State(Scope.Thread)
+    public static class Reused {
+        final BinaryPlistEncoder encoder = new BinaryPlistEncoder();
+    }
+}
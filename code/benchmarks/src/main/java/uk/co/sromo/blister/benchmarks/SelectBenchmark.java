@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPDict;
+import uk.co.sromo.blister.BPItem;
+import uk.co.sromo.blister.BPString;
+import uk.co.sromo.blister.BinaryPlist;
+import uk.co.sromo.blister.BinaryPlistException;
+import uk.co.sromo.blister.BinaryPlistReader;
+import uk.co.sromo.blister.PlistPath;
+
+/**
+ * Measures picking one value out of the wide dict with a PlistPath, against decoding the
+ * whole plist and looking the key up. The key is the last one in the dict, which is the
+ * worst case for scanning the keys. A reader which is kept indexes the keys of the dict
+ * the second time it's searched, so selectWithReader measures an indexed lookup.
+ */
+@State(Scope.Benchmark)
+public class SelectBenchmark {
+
+    private byte[] bytes;
+    private String key;
+    private PlistPath path;
+    private BinaryPlistReader reader;
+
+    @Setup
+    public void setUp() throws BinaryPlistException {
+        bytes = Corpus.WIDE_DICT.encoded();
+        for (BPString k : ((BPDict) BinaryPlist.decode(bytes)).keySet()) {
+            key = k.getValue();
+        }
+        path = PlistPath.compile(key);
+        reader = new BinaryPlistReader(bytes);
+    }
+
+    @Benchmark
+    public BPItem decodeAndGet() throws BinaryPlistException {
+        return ((BPDict) BinaryPlist.decode(bytes)).get(key);
+    }
+
+    @Benchmark
+    public BPItem select() throws BinaryPlistException {
+        return path.select(bytes);
+    }
+
+    @Benchmark
+    public BPItem selectWithReader() throws BinaryPlistException {
+        return reader.select(path);
+    }
+}
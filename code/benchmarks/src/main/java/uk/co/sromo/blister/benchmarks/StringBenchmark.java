@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.sromo.blister.BPString;
+
+/**
+ * Measures creating BPStrings, which has to work out whether the string can be stored as
+ * ASCII. A JMH version of the timing loop in TestPerformance.
+ */
+@State(Scope.Benchmark)
+public class StringBenchmark {
+
+    @Param({"Normal ASCII string 1234567890", "Non-exotic non-ASCII string ©®ÀÈÌÒÙ"})
+    public String value;
+
+    @Benchmark
+    public BPString create() {
+        return BPString.get(value);
+    }
+}
@@ -24,12 +24,16 @@ import java.util.*;
  * All of the 'with' methods return this, enabling them to be chained in a fluent style:
  * BPArray dict = new BPDict().with("value1").with(2).with(true);
  * 
+ * The items are held in an ArrayList, so get(int) is constant time; a decoded array's list
+ * is allocated once, at exactly the right size.
+ *
  * TODO: Verify this implements List<BPItem> correctly.
  */
 public class BPArray extends BPExpandableItem implements List<BPItem> {
 
-    private final int[] arrayItemOffsets;
-    private final List<BPItem> items = new LinkedList<BPItem>();
+    // object refs of the items, only needed until the array has been expanded
+    private int[] arrayItemOffsets;
+    private final ArrayList<BPItem> items = new ArrayList<BPItem>();
 
     BPArray(int[] arrayItemOffsets) {
         this.arrayItemOffsets = arrayItemOffsets;
@@ -41,11 +45,13 @@ public class BPArray extends BPExpandableItem implements List<BPItem> {
     
     @Override
     protected void doExpand(BinaryPlistDecoder decoder) {
+        items.ensureCapacity(arrayItemOffsets.length);
         for (int i=0; i< arrayItemOffsets.length; i++) {
             int itemOffset = arrayItemOffsets[i];
             BPItem item = decoder.getItemAtIndex(itemOffset);
             items.add(item);
         }
+        arrayItemOffsets = EMPTY;
     }
 
     public BPArray with(BPItem item) {
@@ -66,114 +72,217 @@ public class BPArray extends BPExpandableItem implements List<BPItem> {
     }
 
     public boolean add(BPItem bpItem) {
-        return items.add(bpItem);
+        checkNotFrozen();
+        expandIfNeeded();
+        added(bpItem);
+        items.add(bpItem);
+        structurallyModified();
+        return true;
     }
 
     public void add(int index, BPItem element) {
+        checkNotFrozen();
+        expandIfNeeded();
+        added(element);
         items.add(index, element);
+        structurallyModified();
     }
 
     public boolean addAll(Collection<? extends BPItem> c) {
-        return items.addAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        addedAll(c);
+        return changed(items.addAll(c));
     }
 
     public boolean addAll(int index, Collection<? extends BPItem> c) {
-        return items.addAll(index, c);
+        checkNotFrozen();
+        expandIfNeeded();
+        addedAll(c);
+        return changed(items.addAll(index, c));
     }
 
     public void clear() {
+        checkNotFrozen();
+        expandIfNeeded();
         items.clear();
+        structurallyModified();
     }
 
     public boolean contains(Object o) {
+        expandIfNeeded();
         return items.contains(o);
     }
 
     public boolean containsAll(Collection<?> c) {
+        expandIfNeeded();
         return items.containsAll(c);
     }
 
     @Override
     public boolean equals(Object o) {
-        return items.equals(o);
+        expandIfNeeded();
+        return o == this || (!hashDiffers(o) && items.equals(o));
     }
 
     public BPItem get(int index) {
+        expandIfNeeded();
         return items.get(index);
     }
 
     @Override
-    public int hashCode() {
+    protected int computeHashCode() {
         return items.hashCode();
     }
 
+    @Override
+    protected Iterator<BPItem> children() {
+        return items.iterator();
+    }
+
     public int indexOf(Object o) {
+        expandIfNeeded();
         return items.indexOf(o);
     }
 
     public boolean isEmpty() {
+        expandIfNeeded();
         return items.isEmpty();
     }
 
     public Iterator<BPItem> iterator() {
-        return items.iterator();
+        expandIfNeeded();
+        return view.iterator();
     }
 
     public int lastIndexOf(Object o) {
+        expandIfNeeded();
         return items.lastIndexOf(o);
     }
 
     public ListIterator<BPItem> listIterator() {
-        return items.listIterator();
+        expandIfNeeded();
+        return view.listIterator();
     }
 
     public ListIterator<BPItem> listIterator(int index) {
-        return items.listIterator(index);
+        expandIfNeeded();
+        return view.listIterator(index);
     }
 
     public BPItem remove(int index) {
-        return items.remove(index);
+        checkNotFrozen();
+        expandIfNeeded();
+        BPItem removed = items.remove(index);
+        structurallyModified();
+        return removed;
     }
 
     public boolean remove(Object o) {
-        return items.remove(o);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.remove(o));
     }
 
     public boolean removeAll(Collection<?> c) {
-        return items.removeAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.removeAll(c));
     }
 
     public boolean retainAll(Collection<?> c) {
-        return items.retainAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.retainAll(c));
     }
 
     public BPItem set(int index, BPItem element) {
-        return items.set(index, element);
+        checkNotFrozen();
+        expandIfNeeded();
+        added(element);
+        BPItem old = items.set(index, element);
+        mutated();
+        return old;
     }
 
     public int size() {
+        expandIfNeeded();
         return items.size();
     }
 
     public List<BPItem> subList(int fromIndex, int toIndex) {
-        return items.subList(fromIndex, toIndex);
+        expandIfNeeded();
+        return view.subList(fromIndex, toIndex);
     }
 
     public Object[] toArray() {
+        expandIfNeeded();
         return items.toArray();
     }
 
     public <T> T[] toArray(T[] a) {
+        expandIfNeeded();
         return items.toArray(a);
     }
 
     @Override
     public String toString() {
+        expandIfNeeded();
         return "BPArray{" +
                 "items=" + items +
                 '}';
     }
 
+    private boolean changed(boolean changed) {
+        if (changed) {
+            structurallyModified();
+        }
+        return changed;
+    }
+
+    private void structurallyModified() {
+        view.structurallyModified();
+        mutated();
+    }
+
+    /**
+     * Iterators and sublists are taken from this rather than from the ArrayList itself, so
+     * that changes made through them go through the methods above and count as mutations.
+     */
+    private final View view = new View();
+
+    private class View extends AbstractList<BPItem> {
+        @Override
+        public BPItem get(int index) {
+            return items.get(index);
+        }
+
+        @Override
+        public int size() {
+            return items.size();
+        }
+
+        @Override
+        public BPItem set(int index, BPItem element) {
+            return BPArray.this.set(index, element);
+        }
+
+        @Override
+        public void add(int index, BPItem element) {
+            BPArray.this.add(index, element);
+        }
+
+        @Override
+        public BPItem remove(int index) {
+            return BPArray.this.remove(index);
+        }
+
+        // so that the view's iterators fail fast however the array is changed
+        void structurallyModified() {
+            modCount++;
+        }
+    }
+
     @Override
     public Type getType() {
         return Type.Array;
@@ -18,25 +18,49 @@ package uk.co.sromo.blister;
 
 import uk.co.sromo.blister.BPItem;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents a Date in a plist - NOT YET IMPLEMENTED!
  */
 public class BPDate extends BPItem {
     
-    private final byte[] data;
+    // seconds since 1 January 2001 GMT, as stored in the plist
+    private final double value;
 
     public BPDate(byte[] data) {
-        this.data = data;
-        log.warning("BPDate not yet implemented");
+        this(ByteBuffer.wrap(data).getDouble());
+    }
+
+    BPDate(double value) {
+        this.value = value;
     }
 
     @Override
     public String toString() {
         return "BPDate{" +
-                "data=" + data +
+                "value=" + value +
                 '}';
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BPDate bpDate = (BPDate) o;
+
+        if (Double.compare(bpDate.value, value) != 0) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long temp = value != +0.0d ? Double.doubleToLongBits(value) : 0L;
+        return (int) (temp ^ (temp >>> 32));
+    }
+
     @Override
     public Type getType() {
         return Type.Date;
@@ -17,7 +17,7 @@
 package uk.co.sromo.blister;
 
 import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -34,13 +34,17 @@ import java.util.Set;
  * constants in the client code - these are transparently converted to / from strings
  * (which, in turn, are converted to / from BPString objects).
  *
+ * Looking a value up by String (or enum) key doesn't create a BPString, and the typed
+ * getters look the key up once, so lookups like dict.get("key", fallback) allocate nothing.
+ *
  * TODO: Verify that this implements Map<BPString, BPItem> satisfactorily.
  */
 public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
-    private final int[] keyOffsets;
-    private final int[] valueOffsets;
+    // object refs of the keys and values, only needed until the dict has been expanded
+    private int[] keyOffsets;
+    private int[] valueOffsets;
 
-    private final Map<BPString, BPItem> map = new LinkedHashMap<BPString, BPItem>();
+    private final BPDictEntries map = new BPDictEntries(this); // refuses changes once this is frozen
 
     BPDict(int[] keyOffsets, int[] valueOffsets) {
         this.keyOffsets = keyOffsets;
@@ -54,17 +58,23 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
 
     @Override
     protected void doExpand(BinaryPlistDecoder decoder) throws BinaryPlistException {
+        map.ensureCapacity(keyOffsets.length);
         for (int i=0; i< keyOffsets.length; i++) {
             int keyOffset = keyOffsets[i];
             int valueOffset = valueOffsets[i];
-            BPItem key = decoder.getItemAtIndex(keyOffset);
+            BPItem key = decoder.getKeyAtIndex(keyOffset);
             if (key.getType() != Type.String) {
                 throw new BinaryPlistException("Dictionary key wasn't a string, was " + key.getType());
             }
             BPItem value = decoder.getItemAtIndex(valueOffset);
-            map.put((BPString)key, value);
-            log.fine(key.toString() + " = " + value.toString());
+            map.putQuietly((BPString)key, value);
+            if (BinaryPlist.tracing(log)) {
+                // only the key - stringifying the value would expand it if it's a lazy collection
+                log.fine(key.toString() + " = " + value.getType());
+            }
         }
+        keyOffsets = EMPTY;
+        valueOffsets = EMPTY;
     }
 
     public BPDict with(BPString key, BPItem value) {
@@ -129,83 +139,77 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public String get(String key, String fallback) throws BinaryPlistException {
-        BPString bpKey = new BPString(key);
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
+        BPItem value = get(key);
+        if (value == null) return fallback;
         if (value.getType() != BPItem.Type.String) {
             throw new BinaryPlistException("Not a string");
         }
         return ((BPString) value).getValue();
     }
 
-    public int get(BPString bpKey, int fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
+    public int get(String key, int fallback) throws BinaryPlistException {
+        BPItem value = get(key);
+        if (value == null) return fallback;
         if (value.getType() != BPItem.Type.Int) {
             throw new BinaryPlistException("Not an int");
         }
         return ((BPInt) value).getValue();
     }
 
-    public boolean get(BPString bpKey, boolean fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
+    public boolean get(String key, boolean fallback) throws BinaryPlistException {
+        BPItem value = get(key);
+        if (value == null) return fallback;
         if (value.getType() != BPItem.Type.Boolean) {
             throw new BinaryPlistException("Not a boolean");
         }
         return ((BPBoolean) value).getValue();
     }
 
-    public float get(BPString bpKey, float fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
-        if (value.getType() != BPItem.Type.Real) {
-            throw new BinaryPlistException("Not a real");
-        }
-        return ((BPReal) value).getFloatValue();
-    }
-
-    public double get(BPString bpKey, double fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
+    public double get(String key, double fallback) throws BinaryPlistException {
+        BPItem value = get(key);
+        if (value == null) return fallback;
         if (value.getType() != BPItem.Type.Real) {
             throw new BinaryPlistException("Not a real");
         }
         return ((BPReal) value).getDoubleValue();
     }
 
-    public <T extends Enum<T>> T get(BPString bpKey, T fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
+    public <T extends Enum<T>> T get(String key, T fallback) throws BinaryPlistException {
+        BPItem value = get(key);
+        if (value == null) return fallback;
         if (value.getType() != BPItem.Type.String) {
             throw new BinaryPlistException("Not a string");
         }
         return Enum.valueOf(fallback.getDeclaringClass(), ((BPString)value).getValue());
     }
 
-    public String get(BPString bpKey, String fallback) throws BinaryPlistException {
-        if (!containsKey(bpKey)) return fallback;
-        BPItem value = get(bpKey);
-        if (value.getType() != BPItem.Type.String) {
-            throw new BinaryPlistException("Not a string");
-        }
-        return ((BPString) value).getValue();
+    public int get(BPString bpKey, int fallback) throws BinaryPlistException {
+        return get(bpKey.getValue(), fallback);
     }
 
-    public int get(String key, int fallback) throws BinaryPlistException {
-        return get(new BPString(key), fallback);
+    public boolean get(BPString bpKey, boolean fallback) throws BinaryPlistException {
+        return get(bpKey.getValue(), fallback);
     }
 
-    public boolean get(String key, boolean fallback) throws BinaryPlistException {
-        return get(new BPString(key), fallback);
+    public float get(BPString bpKey, float fallback) throws BinaryPlistException {
+        BPItem value = get(bpKey);
+        if (value == null) return fallback;
+        if (value.getType() != BPItem.Type.Real) {
+            throw new BinaryPlistException("Not a real");
+        }
+        return ((BPReal) value).getFloatValue();
     }
 
-    public double get(String key, double fallback) throws BinaryPlistException {
-        return get(new BPString(key), fallback);
+    public double get(BPString bpKey, double fallback) throws BinaryPlistException {
+        return get(bpKey.getValue(), fallback);
     }
 
-    public <T extends Enum<T>> T get(String key, T fallback) throws BinaryPlistException {
-        return get(new BPString(key), fallback);
+    public <T extends Enum<T>> T get(BPString bpKey, T fallback) throws BinaryPlistException {
+        return get(bpKey.getValue(), fallback);
+    }
+
+    public String get(BPString bpKey, String fallback) throws BinaryPlistException {
+        return get(bpKey.getValue(), fallback);
     }
 
     public <S extends Enum<S>> String get(S key, String fallback) throws BinaryPlistException {
@@ -229,6 +233,7 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public void clear() {
+        expandIfNeeded();
         map.clear();
     }
 
@@ -237,7 +242,8 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public boolean containsKey(String key) {
-        return containsKey(new BPString(key));
+        expandIfNeeded();
+        return map.indexOf(key) >= 0;
     }
 
     public <S extends Enum> boolean containsKey(S key) {
@@ -245,20 +251,23 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public boolean containsKey(BPString key) {
-        return map.containsKey(key);
+        return containsKey(key.getValue());
     }
 
     public boolean containsValue(Object value) {
+        expandIfNeeded();
         return map.containsValue(value);
     }
 
     public Set<Entry<BPString, BPItem>> entrySet() {
+        expandIfNeeded();
         return map.entrySet();
     }
 
     @Override
     public boolean equals(Object o) {
-        return map.equals(o);
+        expandIfNeeded();
+        return o == this || (!hashDiffers(o) && map.equals(o));
     }
 
     public BPItem get(Object key) {
@@ -270,31 +279,41 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public BPItem get(String key) {
-        return get(new BPString(key));
+        expandIfNeeded();
+        return map.get(key);
     }
 
     public BPItem get(BPString key) {
-        return map.get(key);
+        return get(key.getValue());
     }
 
     @Override
-    public int hashCode() {
+    protected int computeHashCode() {
         return map.hashCode();
     }
 
+    @Override
+    protected Iterator<BPItem> children() {
+        return map.valueIterator();
+    }
+
     public boolean isEmpty() {
+        expandIfNeeded();
         return map.isEmpty();
     }
 
     public Set<BPString> keySet() {
+        expandIfNeeded();
         return map.keySet();
     }
 
     public BPItem put(BPString key, BPItem value) {
+        expandIfNeeded();
         return map.put(key, value);
     }
 
     public void putAll(Map<? extends BPString, ? extends BPItem> m) {
+        expandIfNeeded();
         map.putAll(m);
     }
 
@@ -307,23 +326,27 @@ public class BPDict extends BPExpandableItem implements Map<BPString, BPItem> {
     }
 
     public BPItem remove(String key) {
-        return remove(new BPString(key));
+        expandIfNeeded();
+        return map.remove(key);
     }
 
     public BPItem remove(BPString key) {
-        return map.remove(key);
+        return remove(key.getValue());
     }
 
     public int size() {
+        expandIfNeeded();
         return map.size();
     }
 
     public Collection<BPItem> values() {
+        expandIfNeeded();
         return map.values();
     }
 
     @Override
     public String toString() {
+        expandIfNeeded();
         return "BPDict{" +
                 "map=" + map +
                 '}';
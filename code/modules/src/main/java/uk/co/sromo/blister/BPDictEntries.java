@@ -0,0 +1,363 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The contents of a BPDict: keys and values in insertion order, in a pair of arrays. Most
+ * dicts in real plists only have a handful of entries, and for those a linear scan is as
+ * fast as anything, so there's no index until a dict grows past INDEX_THRESHOLD entries;
+ * then an open-addressed index from key hash to position is added. Because a BPString
+ * hashes the same as its value, keys can be looked up by plain String, so BPDict doesn't
+ * need to create a BPString to look something up. Removing an entry shifts the later ones
+ * down to keep the order, so it's O(n), but plists are rarely edited much. Every change
+ * counts as a mutation of the BPDict for the purpose of its cached hash code, except for
+ * putQuietly(), which is how the dict is filled when it's expanded. Every change, however
+ * it's made, is refused once the BPDict is frozen.
+ */
+class BPDictEntries extends AbstractMap<BPString, BPItem> {
+
+    final static int INDEX_THRESHOLD = 8;
+
+    private final static BPString[] NO_KEYS = new BPString[0];
+    private final static BPItem[] NO_VALUES = new BPItem[0];
+
+    private BPString[] keys = NO_KEYS;
+    private BPItem[] values = NO_VALUES;
+    private int size = 0;
+    private int[] index = null; // position + 1 of each entry, or 0 for an empty slot; null if small
+    private int modCount = 0;
+    private Set<Entry<BPString, BPItem>> entrySet;
+    private final BPExpandableItem owner; // the dict these are the contents of
+
+    BPDictEntries(BPExpandableItem owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Makes room for the given number of entries in all, so that a decoded dict's arrays are
+     * allocated once and are exactly the right size.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * Position of the entry with the given key, or -1 if there isn't one.
+     */
+    int indexOf(String key) {
+        int hash = key.hashCode();
+        if (index == null) {
+            for (int i=0; i< size; i++) {
+                BPString candidate = keys[i];
+                if (candidate.hashCode() == hash && candidate.getValue().equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int i = spread(hash) & mask; index[i] != 0; i = (i + 1) & mask) {
+            BPString candidate = keys[index[i] - 1];
+            if (candidate.hashCode() == hash && candidate.getValue().equals(key)) {
+                return index[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    BPItem get(String key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : values[i];
+    }
+
+    BPItem remove(String key) {
+        int i = indexOf(key);
+        return (i < 0) ? null : removeAt(i);
+    }
+
+    @Override
+    public BPItem get(Object key) {
+        return (key instanceof BPString) ? get(((BPString) key).getValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof BPString) && indexOf(((BPString) key).getValue()) >= 0;
+    }
+
+    @Override
+    public BPItem put(BPString key, BPItem value) {
+        owner.checkNotFrozen();
+        owner.added(value);
+        BPItem old = putQuietly(key, value);
+        owner.mutated();
+        return old;
+    }
+
+    /**
+     * As put(), but without counting as a mutation.
+     */
+    BPItem putQuietly(BPString key, BPItem value) {
+        int i = indexOf(key.getValue());
+        if (i >= 0) {
+            BPItem old = values[i];
+            values[i] = value;
+            return old;
+        }
+        if (size == keys.length) {
+            ensureCapacity(Math.max(4, size + (size >> 1)));
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        modCount++;
+        if (index == null) {
+            if (size > INDEX_THRESHOLD) {
+                rebuildIndex(tableSizeFor(keys.length));
+            }
+        } else if (size * 2 > index.length) {
+            rebuildIndex(index.length << 1);
+        } else {
+            addToIndex(size - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public BPItem remove(Object key) {
+        return (key instanceof BPString) ? remove(((BPString) key).getValue()) : null;
+    }
+
+    @Override
+    public void clear() {
+        owner.checkNotFrozen();
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        index = null;
+        size = 0;
+        modCount++;
+        owner.mutated();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The values in order, read-only, without the Entry per value that values() makes.
+     */
+    Iterator<BPItem> valueIterator() {
+        return new ValueIterator();
+    }
+
+    @Override
+    public int hashCode() {
+        // as AbstractMap's, but without making an Entry for each entry
+        int h = 0;
+        for (int i=0; i< size; i++) {
+            BPItem value = values[i];
+            h += keys[i].hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        return h;
+    }
+
+    @Override
+    public Set<Entry<BPString, BPItem>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private BPItem removeAt(int i) {
+        owner.checkNotFrozen();
+        BPItem old = values[i];
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+        if (index != null) {
+            rebuildIndex(index.length);
+        }
+        owner.mutated();
+        return old;
+    }
+
+    private void addToIndex(int position) {
+        int mask = index.length - 1;
+        int i = spread(keys[position].hashCode()) & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = position + 1;
+    }
+
+    private void rebuildIndex(int length) {
+        index = new int[length];
+        for (int i=0; i< size; i++) {
+            addToIndex(i);
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int tableSizeFor(int entries) {
+        int length = 4;
+        while (length < entries * 2) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    private class EntrySet extends AbstractSet<Entry<BPString, BPItem>> {
+        @Override
+        public Iterator<Entry<BPString, BPItem>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            BPDictEntries.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry<BPString, BPItem>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Entry<BPString, BPItem> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new EntryAt(last);
+        }
+
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private class ValueIterator implements Iterator<BPItem> {
+        private int next = 0;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public BPItem next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return values[next++];
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An entry which reads and writes through to the arrays. Only valid until the dict is
+     * structurally modified, as with the entries of most Map implementations.
+     */
+    private class EntryAt implements Entry<BPString, BPItem> {
+        private final int position;
+
+        EntryAt(int position) {
+            this.position = position;
+        }
+
+        public BPString getKey() {
+            return keys[position];
+        }
+
+        public BPItem getValue() {
+            return values[position];
+        }
+
+        public BPItem setValue(BPItem value) {
+            owner.checkNotFrozen();
+            owner.added(value);
+            BPItem old = values[position];
+            values[position] = value;
+            owner.mutated();
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            BPItem value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+}
@@ -16,22 +16,235 @@
 
 package uk.co.sromo.blister;
 
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+
 /**
  * Base class for BPItems which are 'expandable' i.e. the collection classes.
+ *
+ * When a plist is decoded lazily, a collection keeps hold of the decoder which created it
+ * and is only expanded the first time one of its methods is called. Subclasses must call
+ * expandIfNeeded() at the start of every public method which reads or changes their
+ * contents.
+ *
+ * Working out the hash code of a collection means hashing everything inside it, so it's
+ * cached. A change to a collection changes the hash of every collection containing it,
+ * and collections don't know what contains them, so collections which are put inside one
+ * another share a Tree, with a count of the changes to any of them. A cached hash is only
+ * used while that count is the same as when the hash was worked out. Every collection from
+ * one decode starts off in the same Tree. Subclasses must call added() with every item
+ * they're given, and mutated() after every change to their contents - except while being
+ * expanded, which doesn't count as a change. Between changes, each hash in a tree is
+ * worked out at most once, however deep the tree is.
+ *
+ * A collection can be frozen, which freezes everything inside it too. A frozen collection
+ * is fully expanded, its hash code is worked out up front, and any attempt to change it
+ * throws UnsupportedOperationException, so nothing about it changes after freeze() returns.
+ * That makes a frozen tree safe to read from any number of threads at once without
+ * locking, once it has been safely published to them (e.g. through a final or volatile
+ * field, or a concurrent collection).
  */
 abstract class BPExpandableItem extends BPItem {
 
     protected final static int[] EMPTY = new int[0];
     private boolean expanded = false;
+    private boolean frozen = false;
+    private boolean freezing = false; // set while freeze() is working on what's inside this
+    private BinaryPlistDecoder lazyDecoder = null;
+
+    Tree tree = null; // made when first needed, unless decoded
+    private int cachedHash;
+    private long cachedHashVersion = -1; // the tree's version when cachedHash was worked out
+
+    /**
+     * Collections which have been put inside one another, as a union-find set - each tree
+     * points towards the one it was merged into, and the root keeps the count of changes.
+     * Trees are merged but never split, so taking a collection out of another only means
+     * their hashes are worked out a little more often than they need to be.
+     */
+    static final class Tree {
+        private Tree parent = null; // null for a root
+        private long version = 0;
+
+        Tree root() {
+            Tree root = this;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            for (Tree tree = this; tree != root; ) {
+                Tree next = tree.parent;
+                tree.parent = root;
+                tree = next;
+            }
+            return root;
+        }
+    }
+
+    private Tree tree() {
+        if (tree == null) {
+            tree = new Tree();
+        }
+        return tree;
+    }
 
     @Override
     final void expand(BinaryPlistDecoder decoder) throws BinaryPlistException {
         if (!expanded) {
             doExpand(decoder);
             expanded = true;
+            // in case something hashed this before it was expanded
+            cachedHashVersion = -1;
+        }
+    }
+
+    /**
+     * Defers expansion of this item until it's first used. The decoder (and the plist
+     * data behind it) is retained until then.
+     */
+    final void expandLazily(BinaryPlistDecoder decoder) {
+        this.lazyDecoder = decoder;
+    }
+
+    /**
+     * Expands this item if it was decoded lazily and hasn't been used yet.
+     */
+    protected final void expandIfNeeded() {
+        if (lazyDecoder != null) {
+            BinaryPlistDecoder decoder = lazyDecoder;
+            // clear this first, so that a failed expansion isn't retried with half the items already added
+            lazyDecoder = null;
+            try {
+                expand(decoder);
+            } catch (BinaryPlistException e) {
+                throw new BinaryPlistDecoder.DecodingException("Couldn't expand " + getType() + " - " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Must be called with every item put into a collection. If it's a collection too, their
+     * trees are merged, so that changing it drops this one's cached hash.
+     */
+    protected final void added(BPItem item) {
+        if (item instanceof BPExpandableItem && !((BPExpandableItem) item).frozen) {
+            Tree root = tree().root();
+            Tree other = ((BPExpandableItem) item).tree().root();
+            if (root != other) {
+                other.parent = root;
+                // newer than any hash cached in either tree
+                root.version = Math.max(root.version, other.version) + 1;
+            }
+        }
+    }
+
+    protected final void addedAll(Collection<? extends BPItem> items) {
+        for (BPItem item : items) {
+            added(item);
+        }
+    }
+
+    /**
+     * Must be called after any change to the contents of a collection.
+     */
+    protected final void mutated() {
+        if (tree != null) {
+            tree.root().version++;
+        }
+    }
+
+    /**
+     * Must be called before any change to the contents of a collection.
+     */
+    protected final void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException(getType() + " is frozen");
+        }
+    }
+
+    public final boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Makes this collection, and every collection inside it, unchangeable - see above.
+     * Collections are frozen from the bottom up, each one's hash code being worked out from
+     * its already frozen children. Throws IllegalStateException if the collection contains
+     * itself, which would have no hash code; in that case some of it may be frozen already.
+     */
+    public final void freeze() {
+        if (frozen) {
+            return;
+        }
+        // the collections being frozen, each with an iterator over the children still to do
+        Deque<BPExpandableItem> path = new ArrayDeque<BPExpandableItem>();
+        Deque<Iterator<BPItem>> children = new ArrayDeque<Iterator<BPItem>>();
+        expandIfNeeded();
+        path.push(this);
+        children.push(children());
+        freezing = true;
+        while (!path.isEmpty()) {
+            Iterator<BPItem> iterator = children.peek();
+            if (iterator.hasNext()) {
+                BPItem child = iterator.next();
+                if (child instanceof BPExpandableItem && !((BPExpandableItem) child).frozen) {
+                    BPExpandableItem collection = (BPExpandableItem) child;
+                    if (collection.freezing) {
+                        for (BPExpandableItem unfinished : path) {
+                            unfinished.freezing = false;
+                        }
+                        throw new IllegalStateException(collection.getType() + " contains itself, so can't be frozen");
+                    }
+                    collection.freezing = true;
+                    collection.expandIfNeeded();
+                    path.push(collection);
+                    children.push(collection.children());
+                }
+            } else {
+                BPExpandableItem collection = path.pop();
+                children.pop();
+                collection.freezing = false;
+                collection.cachedHash = collection.computeHashCode();
+                collection.frozen = true;
+            }
         }
     }
 
+    @Override
+    public final int hashCode() {
+        if (frozen) {
+            return cachedHash;
+        }
+        expandIfNeeded();
+        Tree root = tree().root();
+        if (cachedHashVersion != root.version) {
+            cachedHash = computeHashCode();
+            cachedHashVersion = root.version;
+        }
+        return cachedHash;
+    }
+
+    /**
+     * True if the hash code is frozen, or cached and still up to date.
+     */
+    private boolean hashKnown() {
+        return frozen || (tree != null && cachedHashVersion == tree.root().version);
+    }
+
+    /**
+     * A quick check for equals() - true if the other object is a collection whose hash code
+     * is different to this one's, so that it can't be equal. Only hashes which are already
+     * known are compared, since working them out would cost more than the comparison saves.
+     */
+    protected final boolean hashDiffers(Object o) {
+        if (!(o instanceof BPExpandableItem)) {
+            return false;
+        }
+        BPExpandableItem other = (BPExpandableItem) o;
+        return hashKnown() && other.hashKnown() && cachedHash != other.cachedHash;
+    }
+
     @Override
     final boolean canBeRoot() {
         return true;
@@ -39,6 +252,17 @@ abstract class BPExpandableItem extends BPItem {
 
     protected abstract void doExpand(BinaryPlistDecoder decoder) throws BinaryPlistException;
 
+    /**
+     * Works out the hash code from the contents, as specified by the collection interface
+     * the subclass implements.
+     */
+    protected abstract int computeHashCode();
+
+    /**
+     * The items directly inside the collection - for a dict, its values.
+     */
+    protected abstract Iterator<BPItem> children();
+
     @Override
     final boolean isExpanded() {
         return expanded;
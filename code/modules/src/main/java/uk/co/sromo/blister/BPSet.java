@@ -34,7 +34,8 @@ import java.util.Set;
  * the order in which they will be serialized.
  */
 public class BPSet extends BPExpandableItem implements Set<BPItem> {
-    private final int[] setItemOffsets;
+    // object refs of the items, only needed until the set has been expanded
+    private int[] setItemOffsets;
     private final Set<BPItem> items = new HashSet<BPItem>();
 
     BPSet(int[] setItemOffsets) {
@@ -47,12 +48,15 @@ public class BPSet extends BPExpandableItem implements Set<BPItem> {
     }
 
     @Override
-    protected void doExpand(BinaryPlistDecoder decoder) {
+    protected void doExpand(BinaryPlistDecoder decoder) throws BinaryPlistException {
         for (int i=0; i< setItemOffsets.length; i++) {
             int itemOffset = setItemOffsets[i];
             BPItem item = decoder.getItemAtIndex(itemOffset);
+            // it's about to be hashed, so it must be complete
+            decoder.expandSubtree(item);
             items.add(item);
         }
+        setItemOffsets = EMPTY;
     }
 
     public BPSet with(BPItem item) {
@@ -73,74 +77,125 @@ public class BPSet extends BPExpandableItem implements Set<BPItem> {
     }
 
     public boolean add(BPItem bpItem) {
-        return items.add(bpItem);
+        checkNotFrozen();
+        expandIfNeeded();
+        added(bpItem);
+        return changed(items.add(bpItem));
     }
 
     public boolean addAll(Collection<? extends BPItem> c) {
-        return items.addAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        addedAll(c);
+        return changed(items.addAll(c));
     }
 
     public void clear() {
+        checkNotFrozen();
+        expandIfNeeded();
         items.clear();
+        mutated();
     }
 
     public boolean contains(Object o) {
+        expandIfNeeded();
         return items.contains(o);
     }
 
     public boolean containsAll(Collection<?> c) {
+        expandIfNeeded();
         return items.containsAll(c);
     }
 
     @Override
     public boolean equals(Object o) {
-        return items.equals(o);
+        expandIfNeeded();
+        return o == this || (!hashDiffers(o) && items.equals(o));
     }
 
     @Override
-    public int hashCode() {
+    protected int computeHashCode() {
         return items.hashCode();
     }
 
+    @Override
+    protected Iterator<BPItem> children() {
+        return items.iterator();
+    }
+
     public boolean isEmpty() {
+        expandIfNeeded();
         return items.isEmpty();
     }
 
     public Iterator<BPItem> iterator() {
-        return items.iterator();
+        expandIfNeeded();
+        final Iterator<BPItem> iterator = items.iterator();
+        return new Iterator<BPItem>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public BPItem next() {
+                return iterator.next();
+            }
+
+            public void remove() {
+                checkNotFrozen();
+                iterator.remove();
+                mutated();
+            }
+        };
     }
 
     public boolean remove(Object o) {
-        return items.remove(o);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.remove(o));
     }
 
     public boolean removeAll(Collection<?> c) {
-        return items.removeAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.removeAll(c));
     }
 
     public boolean retainAll(Collection<?> c) {
-        return items.retainAll(c);
+        checkNotFrozen();
+        expandIfNeeded();
+        return changed(items.retainAll(c));
     }
 
     public int size() {
+        expandIfNeeded();
         return items.size();
     }
 
     public Object[] toArray() {
+        expandIfNeeded();
         return items.toArray();
     }
 
     public <T> T[] toArray(T[] a) {
+        expandIfNeeded();
         return items.toArray(a);
     }
 
     @Override
     public String toString() {
+        expandIfNeeded();
         return "BPSet{" +
                 "items=" + items +
                 '}';
     }
 
+    private boolean changed(boolean changed) {
+        if (changed) {
+            mutated();
+        }
+        return changed;
+    }
+
     @Override
     public Type getType() {
         return Type.Set;
@@ -18,12 +18,8 @@ package uk.co.sromo.blister;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
 
 /**
  * Represents a String in a plist. Plists have two different string types - ASCII and
@@ -32,36 +28,33 @@ import java.util.regex.Pattern;
  * of the raw bytes. When creating a plist, the encoding type to be used is determined
  * automatically, by inspecting the string to see if it contains all ASCII characters.
  *
- * Once created, BPString values are immutable. However, unlike regular Java Strings, 
- * two separate BPStrings with the same value are separate objects. See discussion in the
- * BPInt class about the possibility of caching frequently used values and its likely
- * (lack of) benefit.
+ * Once created, BPString values are immutable. However, unlike regular Java Strings,
+ * two BPStrings with the same value are usually separate objects. The exception is
+ * dictionary keys decoded with a BPStringPool (see BinaryPlistDecoder.Options.stringPool()),
+ * where equal keys share one BPString, so don't rely on identity either way. See discussion
+ * in the BPInt class about caching frequently used values more generally.
  */
 public class BPString extends BPItem {
-    private static final Charset ASCII = Charset.forName("ASCII");
-    private static final Charset UTF8 = Charset.forName("UTF8");
-    private static final Charset UTF16 = Charset.forName("UTF16");
-    private static final Pattern ASCII_CHECK_REGEX = Pattern.compile("^[\\p{ASCII}]*$");
-
     enum EncodingType {ASCII, UTF16};
 
     private final String value;
     private final EncodingType encodingType;
 
-    static BPString ascii(byte[] bytes) {
-        return get(ASCII.decode(ByteBuffer.wrap(bytes)).toString(), EncodingType.ASCII);
-    }
-
-    static BPString unicode(byte[] bytes) {
-        return get(UTF16.decode(ByteBuffer.wrap(bytes)).toString(), EncodingType.UTF16);
-    }
-
     static BPString get(String string, EncodingType encodingType) {
         return new BPString(string, encodingType);
     }
 
     public static BPString get(String string) {
-        return ASCII_CHECK_REGEX.matcher(string).matches() ? get(string, EncodingType.ASCII) : get(string, EncodingType.UTF16);
+        return isAscii(string) ? get(string, EncodingType.ASCII) : get(string, EncodingType.UTF16);
+    }
+
+    static boolean isAscii(String string) {
+        for (int i=0, length = string.length(); i< length; i++) {
+            if (string.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private BPString(String value, EncodingType encodingType) {
@@ -69,25 +62,28 @@ public class BPString extends BPItem {
         this.encodingType = encodingType;
     }
 
-    // convenience method to enable BPDict to get things, without caching the resulting BPStrings
-    BPString(String value) {
-        this(value, EncodingType.ASCII);
-    }
-
-    byte[] asBytes() {
+    /**
+     * Writes the encoded characters, one byte each for ASCII or two (big-endian, no BOM)
+     * for UTF-16, straight into the output without any intermediate buffers.
+     */
+    void writeTo(BinaryPlistOutput out) {
         if (encodingType == EncodingType.ASCII) {
-            return ASCII.encode(value).array();
+            out.writeAscii(value);
         } else {
-            // Need to strip out the 2-byte BOM at the start
-            byte[] converted = UTF16.encode(value).array();
-            return Arrays.copyOfRange(converted, 2, converted.length);
+            out.writeUtf16(value);
         }
     }
 
+    // number of chars, which for UTF16 is the number of 16-bit code units as the plist wants
     int length() {
        return value.length(); 
     }
 
+    // number of bytes written by writeTo
+    int encodedLength() {
+        return (encodingType == EncodingType.ASCII) ? value.length() : value.length() << 1;
+    }
+
     short bpType() {
         if (encodingType == EncodingType.ASCII) {
             return BinaryPlist.STRING_ASCII;
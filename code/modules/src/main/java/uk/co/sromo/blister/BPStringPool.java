@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of BPStrings which can be shared between decoders (see
+ * BinaryPlistDecoder.Options.stringPool()), so that dictionary keys which turn up in plist
+ * after plist are decoded to the same BPString instance every time rather than to a new
+ * String and BPString each time.
+ *
+ * Keys are found by hashing their raw ASCII bytes, so a key which is already in the pool
+ * costs nothing to decode. The pool is bounded: it's a fixed-size table with one BPString
+ * per slot, and a new key simply replaces whatever was in its slot. It's safe to use from
+ * several threads at once without locking, since BPStrings are immutable - at worst two
+ * threads decoding the same new key will each create a BPString for it.
+ */
+public class BPStringPool {
+    public final static int DEFAULT_SIZE = 4096;
+    public final static int DEFAULT_MAX_LENGTH = 64;
+
+    private final AtomicReferenceArray<BPString> strings;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * Creates a pool with room for DEFAULT_SIZE keys of up to DEFAULT_MAX_LENGTH chars.
+     */
+    public BPStringPool() {
+        this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Creates a pool with room for (at least) the given number of keys, of no more than
+     * maxLength chars each. Longer strings are decoded as normal.
+     */
+    public BPStringPool(int size, int maxLength) {
+        if (size < 1 || maxLength < 0) {
+            throw new IllegalArgumentException("Bad pool size " + size + " or max length " + maxLength);
+        }
+        int capacity = Integer.highestOneBit(Math.min(size, 1 << 30));
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        this.strings = new AtomicReferenceArray<BPString>(capacity);
+        this.mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Returns the pooled BPString for the ASCII string of the given length at the given
+     * position in the buffer, adding it to the pool if necessary. Returns null if the
+     * string is too long to pool, or contains bytes which aren't ASCII.
+     */
+    BPString get(BinaryPlistData data, long position, int length) {
+        if (length > maxLength) {
+            return null;
+        }
+        // same as String.hashCode() for ASCII, so it can be checked against the pooled value's hash
+        int hash = 0;
+        for (int i=0; i< length; i++) {
+            byte b = data.get(position + i);
+            if (b < 0) {
+                return null;
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        BPString pooled = strings.get(slot);
+        if (pooled != null && matches(pooled, hash, data, position, length)) {
+            return pooled;
+        }
+        char[] chars = new char[length];
+        for (int i=0; i< length; i++) {
+            chars[i] = (char) data.get(position + i);
+        }
+        BPString string = BPString.get(new String(chars), BPString.EncodingType.ASCII);
+        strings.lazySet(slot, string);
+        return string;
+    }
+
+    private static boolean matches(BPString pooled, int hash, BinaryPlistData data, long position, int length) {
+        String value = pooled.getValue();
+        if (value.length() != length || value.hashCode() != hash) {
+            return false;
+        }
+        for (int i=0; i< length; i++) {
+            if (value.charAt(i) != data.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -17,6 +17,18 @@
 package uk.co.sromo.blister;
 
 import uk.co.sromo.blister.util.DumpVisitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * This class is the main entrypoint for using Blister to encode a BPlist
  * as a byte array, or to decode a byte array into a BPlist.
@@ -43,6 +55,15 @@ public class BinaryPlist {
     final static short UNUSED_4 = (short) 0xe0; // mask
     final static short UNUSED_5 = (short) 0xf0; // mask
 
+    /**
+     * Switches on FINE-level tracing of every object read or written, which is very verbose
+     * and only useful for debugging the library itself. Set the system property
+     * uk.co.sromo.blister.trace to true to enable it (the loggers must also be at FINE).
+     * Because this is a static final, the JIT removes the tracing code completely when it's
+     * off, so none of the trace messages are built.
+     */
+    final static boolean TRACE = Boolean.getBoolean("uk.co.sromo.blister.trace");
+
     /**
      * Decodes the supplied binary plist data and returns a BPItem representing the
      * root item of the plist, which you'll need to cast to the appropriate
@@ -50,53 +71,141 @@ public class BinaryPlist {
      * TODO: Parameters
      */
     public static BPItem decode(byte[] rawData) throws BinaryPlistException {
-        if (rawData.length < 40) {
-            throw new BinaryPlistException("Byte array not long enough");
-        }
+        return decode(ByteBuffer.wrap(rawData));
+    }
 
-        byte[] headerBytes = new byte[8];
-        byte[] trailerBytes = new byte[32];
+    /**
+     * As decode(byte[]), but using the supplied options.
+     */
+    public static BPItem decode(byte[] rawData, BinaryPlistDecoder.Options options) throws BinaryPlistException {
+        return decode(ByteBuffer.wrap(rawData), options);
+    }
 
-        System.arraycopy(rawData, 0, headerBytes, 0, 8);
-        System.arraycopy(rawData, rawData.length - 32, trailerBytes, 0, 32);
+    /**
+     * Decodes the binary plist held in the remaining bytes of the supplied buffer (i.e.
+     * from its position to its limit). Nothing is copied out of the buffer - the header,
+     * trailer, offset table and objects are all read in place - and the buffer's position
+     * and limit are left as they were. The buffer may be direct or memory-mapped.
+     */
+    public static BPItem decode(ByteBuffer buffer) throws BinaryPlistException {
+        return decode(buffer, new BinaryPlistDecoder.Options());
+    }
 
-        BinaryPlistHeader header = BinaryPlistHeader.build(headerBytes);
-        BinaryPlistTrailer trailer = BinaryPlistTrailer.build(trailerBytes);
+    /**
+     * As decode(ByteBuffer), but using the supplied options. Note that if the options ask for
+     * lazy decoding, the returned tree reads from the buffer as it is used, so the buffer's
+     * contents mustn't be changed while any of it might still be unexpanded.
+     */
+    public static BPItem decode(ByteBuffer buffer, BinaryPlistDecoder.Options options) throws BinaryPlistException {
+        return new BinaryPlistReader(buffer).decoder(options).decode();
+    }
 
-        int offset = (int) trailer.getOffsetTableOffset();
+    /**
+     * Decodes the binary plist in the given file. The file is memory-mapped rather than
+     * read onto the heap, so decoding a large file only costs the space taken by the
+     * resulting BPItems. Files over 2GB are mapped in segments.
+     */
+    public static BPItem decode(Path path) throws BinaryPlistException, IOException {
+        return decode(path, new BinaryPlistDecoder.Options());
+    }
 
-        int dataLength = offset - 8;
-        int offsetTableLength = rawData.length - 32 - offset;
+    /**
+     * As decode(Path), but using the supplied options. A lazily decoded tree keeps the
+     * file mapped until it has been fully expanded.
+     */
+    public static BPItem decode(Path path, BinaryPlistDecoder.Options options) throws BinaryPlistException, IOException {
+        return new BinaryPlistReader(path).decoder(options).decode();
+    }
 
-        byte[] dataBytes = new byte[dataLength];
-        System.arraycopy(rawData, 8, dataBytes, 0, dataLength);
+    /**
+     * Returns the object at the given path (see PlistPath) in the binary plist held in the
+     * remaining bytes of the buffer, or null if there's nothing there. Only the collections
+     * along the path are read, and only the object at the end is decoded.
+     */
+    public static BPItem select(ByteBuffer buffer, String path) throws BinaryPlistException {
+        return PlistPath.compile(path).select(buffer);
+    }
 
-        byte[] offsetTableBytes = new byte[offsetTableLength];
-        System.arraycopy(rawData, offset, offsetTableBytes, 0, offsetTableLength);
-        BinaryPlistOffsetTable offsetTable = BinaryPlistOffsetTable.build(offsetTableBytes, trailer.getOffsetIntSize());
+    /**
+     * As select(ByteBuffer, String), for a plist in a byte array.
+     */
+    public static BPItem select(byte[] rawData, String path) throws BinaryPlistException {
+        return select(ByteBuffer.wrap(rawData), path);
+    }
 
-        BinaryPlistOffsetReader offsetReader = BinaryPlistOffsetReader.create(trailer.getObjectRefSize());
+    /**
+     * Encodes the supplied plist (represented by its root BPItem) as binary
+     * plist data.
+     * TODO: Params
+     */
+    public static byte[] encode(BPItem root) throws BinaryPlistException {
+        return encode(root, new BinaryPlistEncoder.Options());
+    }
 
+    /**
+     * As encode(BPItem), but using the supplied options.
+     */
+    public static byte[] encode(BPItem root, BinaryPlistEncoder.Options options) throws BinaryPlistException {
+        return encoderFor(root, options).getBytes();
+    }
 
-        BinaryPlistDecoder decoder = new BinaryPlistDecoder(header, trailer, dataBytes, offsetTable, offsetReader);
+    /**
+     * Encodes the supplied plist straight to a channel, which is left open. Only a small
+     * part of the output is buffered at any one time, so this is the way to write large
+     * plists.
+     */
+    public static void encode(BPItem root, WritableByteChannel channel) throws BinaryPlistException, IOException {
+        encode(root, channel, new BinaryPlistEncoder.Options());
+    }
 
-        return decoder.decode();
+    /**
+     * As encode(BPItem, WritableByteChannel), but using the supplied options.
+     */
+    public static void encode(BPItem root, WritableByteChannel channel, BinaryPlistEncoder.Options options) throws BinaryPlistException, IOException {
+        encoderFor(root, options).write(channel);
+    }
 
+    /**
+     * Encodes the supplied plist straight to a stream, which is left open.
+     */
+    public static void encode(BPItem root, OutputStream stream) throws BinaryPlistException, IOException {
+        encode(root, Channels.newChannel(stream));
     }
 
     /**
-     * Encodes the supplied plist (represented by its root BPItem) as binary
-     * plist data.
-     * TODO: Params
+     * Encodes the supplied plist to the given file, replacing anything already there. The
+     * output is streamed to the file as it's written, so this works for plists of any size,
+     * including ones over 2GB, which can't be encoded to a byte array.
      */
-    public static byte[] encode(BPItem root) throws BinaryPlistException {
-        if (!root.canBeRoot()) {
-            throw new BinaryPlistException("BPItem of type " + root.getType() + " can't be the root of a Binary PList");
+    public static void encode(BPItem root, Path path) throws BinaryPlistException, IOException {
+        encode(root, path, new BinaryPlistEncoder.Options());
+    }
+
+    /**
+     * As encode(BPItem, Path), but using the supplied options.
+     */
+    public static void encode(BPItem root, Path path, BinaryPlistEncoder.Options options) throws BinaryPlistException, IOException {
+        BinaryPlistEncoder encoder = encoderFor(root, options);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            encoder.write(channel);
+        } finally {
+            channel.close();
         }
+    }
 
-        BinaryPlistEncoder encoder = new BinaryPlistEncoder();
-        root.accept(encoder);
-        return encoder.getBytes();
+    private static BinaryPlistEncoder encoderFor(BPItem root, BinaryPlistEncoder.Options options) throws BinaryPlistException {
+        BinaryPlistEncoder encoder = new BinaryPlistEncoder(options);
+        encoder.start(root);
+        return encoder;
+    }
+
+    /**
+     * Whether tracing messages should be sent to the given logger. Always false (and
+     * cheap enough to be optimised away) unless TRACE is set.
+     */
+    static boolean tracing(Logger log) {
+        return TRACE && log.isLoggable(Level.FINE);
     }
 
     /**
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes plists through a cache, for when the same plists are decoded over and over.
+ * Plists are looked up by content - the xxHash64 of their bytes, and their length - and
+ * the bytes of each cached plist are kept and compared on a hit, so a hash collision can't
+ * return the wrong tree. Trees are decoded frozen (see BinaryPlistDecoder.Options.frozen())
+ * and every hit returns the same instance, so the result can be shared between threads, but
+ * not changed.
+ *
+ * The cache is bounded by the estimated memory its entries use - the plist's bytes plus a
+ * rough estimate of the decoded tree - and evicts the least recently used entries to stay
+ * within it. A plist too big to fit at all is decoded but not cached. The hit, miss and
+ * eviction counts are cumulative, for monitoring to poll.
+ *
+ * Safe to use from several threads at once. Decoding happens outside the lock, so threads
+ * which miss on the same plist at the same time each decode it.
+ */
+public class BinaryPlistCache {
+
+    // rough sizes in bytes of the objects making up a decoded tree, for a 64-bit JVM with
+    // compressed references; booleans and nulls are shared, so cost nothing
+    private static final int SCALAR_SIZE = 32;
+    private static final int STRING_SIZE = 56;
+    private static final int BYTES_SIZE = 32;
+    private static final int DICT_SIZE = 128;
+    private static final int DICT_ENTRY_SIZE = 24;
+    private static final int ARRAY_SIZE = 96;
+    private static final int ARRAY_ITEM_SIZE = 4;
+    private static final int SET_SIZE = 128;
+    private static final int SET_ITEM_SIZE = 40;
+    private static final int ENTRY_SIZE = 128; // the cache's own bookkeeping for an entry
+
+    private final long maxSize;
+    private final BinaryPlistDecoder.Options options = new BinaryPlistDecoder.Options().frozen(true);
+
+    // guarded by this; in access order, so the least recently used entry comes first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache holding up to (approximately) maxSize bytes of plists.
+     */
+    public BinaryPlistCache(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Bad cache size " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * As BinaryPlist.decode(byte[]), but through the cache. The bytes are copied if the
+     * plist is cached, so may be changed afterwards.
+     */
+    public BPItem decode(byte[] bytes) throws BinaryPlistException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * As BinaryPlist.decode(ByteBuffer), but through the cache. The remaining bytes of the
+     * buffer are copied if the plist is cached, so may be changed afterwards; the buffer's
+     * position and limit are left alone.
+     */
+    public BPItem decode(ByteBuffer buffer) throws BinaryPlistException {
+        ByteBuffer plist = buffer.slice();
+        Key key = new Key(XXHash64.hash(plist, 0), plist.remaining());
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.bytes.equals(plist)) {
+            hits.incrementAndGet();
+            return entry.item;
+        }
+        misses.incrementAndGet();
+
+        BPItem item = BinaryPlist.decode(plist, options);
+        long itemSize = ENTRY_SIZE + plist.remaining() + estimateSize(item);
+        if (itemSize <= maxSize) {
+            byte[] bytes = new byte[plist.remaining()];
+            plist.duplicate().get(bytes);
+            put(key, new Entry(ByteBuffer.wrap(bytes), item, itemSize));
+        }
+        return item;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.size;
+        }
+        size += entry.size;
+        // the new entry is the most recently used, so it's the last to go, and it fits
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > maxSize) {
+            size -= eldest.next().size;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Empties the cache. The counts carry on from where they were.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * The estimated memory used by the cached plists, in bytes.
+     */
+    public synchronized long getEstimatedSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Roughly how much memory the tree takes up, dict keys included. Each object is counted
+     * once however many times it appears, and the tree is walked without recursion, so any
+     * shape of plist is safe.
+     */
+    static long estimateSize(BPItem root) {
+        long total = 0;
+        Set<BPItem> seen = Collections.newSetFromMap(new IdentityHashMap<BPItem, Boolean>());
+        Deque<BPItem> toDo = new ArrayDeque<BPItem>();
+        seen.add(root);
+        toDo.push(root);
+        while (!toDo.isEmpty()) {
+            BPItem item = toDo.pop();
+            Collection<BPItem> children = null;
+            switch (item.getType()) {
+                case String:
+                    total += STRING_SIZE + ((BPString) item).encodedLength();
+                    break;
+                case Data:
+                    total += BYTES_SIZE + ((BPData) item).getData().length;
+                    break;
+                case Uid:
+                    total += BYTES_SIZE + ((BPUid) item).getValue().length;
+                    break;
+                case Int:
+                case Real:
+                case Date:
+                    total += SCALAR_SIZE;
+                    break;
+                case Dict:
+                    for (BPString key : ((BPDict) item).keySet()) {
+                        if (seen.add(key)) {
+                            toDo.push(key);
+                        }
+                    }
+                    children = ((BPDict) item).values();
+                    total += DICT_SIZE + DICT_ENTRY_SIZE * (long) children.size();
+                    break;
+                case Array:
+                    children = (BPArray) item;
+                    total += ARRAY_SIZE + ARRAY_ITEM_SIZE * (long) children.size();
+                    break;
+                case Set:
+                    children = (BPSet) item;
+                    total += SET_SIZE + SET_ITEM_SIZE * (long) children.size();
+                    break;
+                default:
+                    break;
+            }
+            if (children != null) {
+                for (BPItem child : children) {
+                    if (seen.add(child)) {
+                        toDo.push(child);
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * What a plist is looked up by.
+     */
+    private static class Key {
+        private final long hash;
+        private final int length;
+
+        Key(long hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return hash == key.hash && length == key.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    private static class Entry {
+        private final ByteBuffer bytes; // the plist, which a match must be identical to
+        private final BPItem item;
+        private final long size;
+
+        Entry(ByteBuffer bytes, BPItem item, long size) {
+            this.bytes = bytes;
+            this.item = item;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The bytes of a plist, read with absolute, big-endian reads at long positions, so that a
+ * plist can be bigger than one ByteBuffer allows. Usually it's a single buffer; a file over
+ * 2GB is mapped as a series of segments instead, and reads which straddle two segments are
+ * put together a byte at a time. Positions are relative to the start of the plist.
+ */
+abstract class BinaryPlistData {
+
+    /**
+     * Size of the segments a large file is mapped in, as a power of two.
+     */
+    final static int SEGMENT_SHIFT = 30;
+
+    /**
+     * Wraps the remaining bytes of the buffer, sharing its content. The buffer's position,
+     * limit and byte order are left alone.
+     */
+    static BinaryPlistData wrap(ByteBuffer buffer) {
+        return new Single(buffer.slice().order(ByteOrder.BIG_ENDIAN));
+    }
+
+    /**
+     * Maps the whole of the file read-only. The mapping stays valid after the channel is
+     * closed.
+     */
+    static BinaryPlistData map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size <= Integer.MAX_VALUE) {
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+        long segmentSize = 1L << SEGMENT_SHIFT;
+        ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) >>> SEGMENT_SHIFT)];
+        for (int i=0; i< segments.length; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+        }
+        return new Segmented(segments, SEGMENT_SHIFT);
+    }
+
+    /**
+     * Joins the segments, each of which but the last must hold exactly 2^shift bytes from
+     * its position onwards.
+     */
+    static BinaryPlistData segmented(ByteBuffer[] segments, int shift) {
+        ByteBuffer[] slices = new ByteBuffer[segments.length];
+        for (int i=0; i< segments.length; i++) {
+            slices[i] = segments[i].slice().order(ByteOrder.BIG_ENDIAN);
+        }
+        return new Segmented(slices, shift);
+    }
+
+    abstract long size();
+
+    abstract byte get(long position);
+
+    abstract short getShort(long position);
+
+    abstract char getChar(long position);
+
+    abstract int getInt(long position);
+
+    abstract long getLong(long position);
+
+    float getFloat(long position) {
+        return Float.intBitsToFloat(getInt(position));
+    }
+
+    double getDouble(long position) {
+        return Double.longBitsToDouble(getLong(position));
+    }
+
+    /**
+     * Reads an unsigned, big-endian int of 1 to 8 bytes.
+     */
+    long getSized(long position, int size) {
+        switch (size) {
+            case 1:
+                return 0xff & get(position);
+            case 2:
+                return 0xffff & getShort(position);
+            case 4:
+                return 0xffffffffL & getInt(position);
+            case 8:
+                return getLong(position);
+            default:
+                long value = 0;
+                for (int i=0; i< size; i++) {
+                    value = (value << 8) | (0xff & get(position + i));
+                }
+                return value;
+        }
+    }
+
+    /**
+     * Copies bytes out, filling the whole of the array.
+     */
+    abstract void get(long position, byte[] bytes);
+
+    /**
+     * Decodes an ASCII string of the given length into the start of the array. As with the
+     * ASCII charset, bytes outside the ASCII range become the replacement character.
+     */
+    void getAscii(long position, char[] chars, int length) {
+        for (int i=0; i< length; i++) {
+            byte b = get(position + i);
+            chars[i] = (b >= 0) ? (char) b : '\ufffd';
+        }
+    }
+
+    /**
+     * Decodes a UTF-16 (big-endian, no BOM) string of the given number of chars into the
+     * start of the array.
+     */
+    void getUtf16(long position, char[] chars, int length) {
+        for (int i=0; i< length; i++) {
+            chars[i] = getChar(position + (i << 1));
+        }
+    }
+
+    /**
+     * Returns the single buffer holding the whole plist, or null if it's segmented.
+     */
+    abstract ByteBuffer buffer();
+
+    /**
+     * Returns a read-only buffer holding the given range of bytes, from its position to
+     * its limit. Shares the content unless the range straddles two segments.
+     */
+    abstract ByteBuffer view(long position, int length);
+
+
+    private static class Single extends BinaryPlistData {
+        private final ByteBuffer data;
+
+        Single(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        long size() {
+            return data.limit();
+        }
+
+        @Override
+        byte get(long position) {
+            return data.get(index(position));
+        }
+
+        @Override
+        short getShort(long position) {
+            return data.getShort(index(position));
+        }
+
+        @Override
+        char getChar(long position) {
+            return data.getChar(index(position));
+        }
+
+        @Override
+        int getInt(long position) {
+            return data.getInt(index(position));
+        }
+
+        @Override
+        long getLong(long position) {
+            return data.getLong(index(position));
+        }
+
+        @Override
+        void get(long position, byte[] bytes) {
+            int start = checkRange(position, bytes.length);
+            if (data.hasArray()) {
+                System.arraycopy(data.array(), data.arrayOffset() + start, bytes, 0, bytes.length);
+            } else {
+                for (int i=0; i< bytes.length; i++) {
+                    bytes[i] = data.get(start + i);
+                }
+            }
+        }
+
+        /**
+         * Strings make up most of a typical plist, so when there's an array behind the
+         * buffer they're decoded straight from it, without a bounds check per byte.
+         */
+        @Override
+        void getAscii(long position, char[] chars, int length) {
+            if (!data.hasArray()) {
+                super.getAscii(position, chars, length);
+                return;
+            }
+            byte[] array = data.array();
+            int start = data.arrayOffset() + checkRange(position, length);
+            for (int i=0; i< length; i++) {
+                byte b = array[start + i];
+                chars[i] = (b >= 0) ? (char) b : '\ufffd';
+            }
+        }
+
+        @Override
+        void getUtf16(long position, char[] chars, int length) {
+            if (!data.hasArray()) {
+                super.getUtf16(position, chars, length);
+                return;
+            }
+            byte[] array = data.array();
+            int start = data.arrayOffset() + checkRange(position, length << 1);
+            for (int i=0; i< length; i++) {
+                int j = start + (i << 1);
+                chars[i] = (char) ((array[j] << 8) | (array[j + 1] & 0xff));
+            }
+        }
+
+        private int checkRange(long position, int length) {
+            if (position < 0 || position + length > data.limit()) {
+                throw new IndexOutOfBoundsException("Bytes " + position + " to " + (position + length) + " are outside the plist");
+            }
+            return (int) position;
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return data;
+        }
+
+        @Override
+        ByteBuffer view(long position, int length) {
+            ByteBuffer view = data.asReadOnlyBuffer();
+            view.position(index(position));
+            view.limit(index(position) + length);
+            return view;
+        }
+
+        /**
+         * Positions past the end of the buffer are out of bounds, like any other.
+         */
+        private static int index(long position) {
+            return (position > Integer.MAX_VALUE) ? -1 : (int) position;
+        }
+    }
+
+    private static class Segmented extends BinaryPlistData {
+        private final ByteBuffer[] segments;
+        private final int shift;
+        private final long mask;
+        private final long size;
+
+        Segmented(ByteBuffer[] segments, int shift) {
+            this.segments = segments;
+            this.shift = shift;
+            this.mask = (1L << shift) - 1;
+            this.size = ((long) (segments.length - 1) << shift) + segments[segments.length - 1].limit();
+        }
+
+        @Override
+        long size() {
+            return size;
+        }
+
+        private ByteBuffer segment(long position) {
+            long index = position >>> shift;
+            if (position < 0 || index >= segments.length) {
+                throw new IndexOutOfBoundsException("Position " + position + " is outside the plist");
+            }
+            return segments[(int) index];
+        }
+
+        /**
+         * Whether the given number of bytes from the position are all in one segment.
+         */
+        private boolean within(long position, int length) {
+            return (position & mask) + length <= segment(position).limit();
+        }
+
+        @Override
+        byte get(long position) {
+            return segment(position).get((int) (position & mask));
+        }
+
+        @Override
+        short getShort(long position) {
+            return within(position, 2) ? segment(position).getShort((int) (position & mask)) : (short) straddling(position, 2);
+        }
+
+        @Override
+        char getChar(long position) {
+            return within(position, 2) ? segment(position).getChar((int) (position & mask)) : (char) straddling(position, 2);
+        }
+
+        @Override
+        int getInt(long position) {
+            return within(position, 4) ? segment(position).getInt((int) (position & mask)) : (int) straddling(position, 4);
+        }
+
+        @Override
+        long getLong(long position) {
+            return within(position, 8) ? segment(position).getLong((int) (position & mask)) : straddling(position, 8);
+        }
+
+        private long straddling(long position, int size) {
+            long value = 0;
+            for (int i=0; i< size; i++) {
+                value = (value << 8) | (0xff & get(position + i));
+            }
+            return value;
+        }
+
+        @Override
+        void get(long position, byte[] bytes) {
+            int done = 0;
+            while (done < bytes.length) {
+                ByteBuffer segment = segment(position + done).duplicate();
+                int start = (int) ((position + done) & mask);
+                int length = Math.min(bytes.length - done, segment.limit() - start);
+                segment.position(start);
+                segment.get(bytes, done, length);
+                done += length;
+            }
+        }
+
+        @Override
+        ByteBuffer buffer() {
+            return null;
+        }
+
+        @Override
+        ByteBuffer view(long position, int length) {
+            if (within(position, length)) {
+                ByteBuffer view = segment(position).asReadOnlyBuffer();
+                view.position((int) (position & mask));
+                view.limit((int) (position & mask) + length);
+                return view;
+            }
+            byte[] bytes = new byte[length];
+            get(position, bytes);
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+}
@@ -16,39 +16,162 @@
 
 package uk.co.sromo.blister;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.logging.Level;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 /**
- * TODO: Documentation
+ * Turns binary plists into trees of BPItems. BinaryPlist.decode makes a new decoder for
+ * every plist; to decode a lot of plists, keep a decoder (one per thread - decoders aren't
+ * thread safe) and call its decode methods, which reuse the decoder's tables and scratch
+ * space from one plist to the next rather than allocating new ones. Nothing the decoder
+ * returns depends on it afterwards, so there's no harm in decoding the next plist while
+ * the last one is still in use.
  */
 public class BinaryPlistDecoder {
 
     private final static Formatter formatter = new Formatter(Locale.UK);
 
 
-    private final BinaryPlistHeader header;
-    private final BinaryPlistOffsetReader offsetReader;
-    private final BinaryPlistTrailer trailer;
-    private final ByteBuffer data;
-    private final BinaryPlistOffsetTable offsetTable;
+    // the plist being decoded - null between plists, for a decoder which is reused
+    private BinaryPlistHeader header;
+    private BinaryPlistOffsetReader offsetReader;
+    private BinaryPlistTrailer trailer;
+    private BinaryPlistData data;
+    private BinaryPlistOffsetTable offsetTable;
 
     private final static Logger log = Logger.getLogger(BinaryPlistDecoder.class.getSimpleName());
 
-    private final Map<Integer, BPItem> items = new HashMap<Integer, BPItem>(); // offset, item
+    private BPItem[] items; // object index -> item, null until decoded; allocated by decode
+    private int itemCount; // number of objects in the plist - items may be longer, if reused
+    private BPString[] keys; // object index -> pooled dict key; only allocated with a string pool
+    private byte[] reached; // object index -> how a parallel decode reaches it, see markReachable
 
-    private final Queue<Integer> offsetsToExpand = new LinkedList<Integer>();
+    /**
+     * A reused decoder keeps its tables between plists unless they're bigger than this many
+     * entries, so one huge plist doesn't pin a lot of memory for the rest of its life.
+     */
+    static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    // object indexes of the collections waiting to be expanded; entries before queueHead are done
+    private int[] indexesToExpand = new int[16];
+    private int queueHead = 0;
+    private int queueTail = 0;
+
+    private final boolean lazy;
+    private final boolean frozen;
+    private final BPStringPool stringPool; // null unless keys are to be pooled
+    private final ForkJoinPool pool; // null unless decoding in parallel
+
+    private final Scratch scratch = new Scratch();
+    private BPExpandableItem.Tree tree; // shared by the collections from the current decode
+
+    /**
+     * Makes a decoder with the default options, for decoding plists one after another.
+     */
+    public BinaryPlistDecoder() {
+        this(new Options());
+    }
+
+    /**
+     * Makes a decoder for decoding plists one after another with the given options, which
+     * are copied, so changing them afterwards has no effect.
+     */
+    public BinaryPlistDecoder(Options options) {
+        this.frozen = options.isFrozen();
+        this.lazy = options.isLazy() && !frozen;
+        this.stringPool = options.getStringPool();
+        this.pool = lazy ? null : options.getPool();
+    }
 
-    BinaryPlistDecoder(BinaryPlistHeader header, BinaryPlistTrailer trailer, byte[] data, BinaryPlistOffsetTable offsetTable, BinaryPlistOffsetReader offsetReader) {
+    BinaryPlistDecoder(BinaryPlistHeader header, BinaryPlistTrailer trailer, BinaryPlistData data, BinaryPlistOffsetTable offsetTable, BinaryPlistOffsetReader offsetReader, Options options) {
+        this(options);
+        start(header, trailer, data, offsetTable, offsetReader);
+    }
+
+    /**
+     * Points the decoder at the plist to be decoded next.
+     */
+    void start(BinaryPlistHeader header, BinaryPlistTrailer trailer, BinaryPlistData data, BinaryPlistOffsetTable offsetTable, BinaryPlistOffsetReader offsetReader) {
         this.header = header;
-        this.data = ByteBuffer.wrap(data);
+        this.data = data;
         this.offsetTable = offsetTable;
         this.trailer = trailer;
         this.offsetReader = offsetReader;
     }
 
+    /**
+     * Decodes the plist in the given bytes, as BinaryPlist.decode(byte[]) does.
+     */
+    public BPItem decode(byte[] bytes) throws BinaryPlistException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes the plist in the remaining bytes of the buffer, as BinaryPlist.decode(ByteBuffer)
+     * does.
+     */
+    public BPItem decode(ByteBuffer buffer) throws BinaryPlistException {
+        return decode(new BinaryPlistReader(buffer));
+    }
+
+    /**
+     * Decodes the plist in the given file, as BinaryPlist.decode(Path) does.
+     */
+    public BPItem decode(Path path) throws BinaryPlistException, IOException {
+        return decode(new BinaryPlistReader(path));
+    }
+
+    private BPItem decode(BinaryPlistReader reader) throws BinaryPlistException {
+        if (lazy) {
+            // the collections hang on to the decoder which made them until they're expanded,
+            // so each lazy decode needs a decoder of its own
+            return reader.decoder(new Options().lazy(true).stringPool(stringPool)).decode();
+        }
+        reader.start(this);
+        try {
+            return decode();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Forgets the last plist, keeping the tables for the next one unless they've got too big.
+     */
+    private void reset() {
+        if (items != null) {
+            if (items.length > MAX_RETAINED_CAPACITY) {
+                items = null;
+            } else {
+                Arrays.fill(items, 0, itemCount, null);
+            }
+        }
+        if (keys != null) {
+            if (keys.length > MAX_RETAINED_CAPACITY) {
+                keys = null;
+            } else {
+                Arrays.fill(keys, 0, itemCount, null);
+            }
+        }
+        if (reached != null && reached.length > MAX_RETAINED_CAPACITY) {
+            reached = null;
+        }
+        itemCount = 0;
+        if (indexesToExpand.length > MAX_RETAINED_CAPACITY) {
+            indexesToExpand = new int[16];
+        }
+        queueHead = 0;
+        queueTail = 0;
+        tree = null;
+        scratch.trim();
+        start(null, null, null, null, null);
+    }
+
     public void dump() {
         log.info("Data:");
 //        data.dump();
@@ -57,8 +180,45 @@ public class BinaryPlistDecoder {
     }
 
     BPItem decode() throws BinaryPlistException {
+        BPItem item = decode((int) trailer.getTopObject());
+        if (frozen && item instanceof BPExpandableItem) {
+            try {
+                ((BPExpandableItem) item).freeze();
+            } catch (IllegalStateException e) {
+                throw new BinaryPlistException("Can't freeze plist - " + e.getMessage());
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Decodes just the object with the given index. Anything other than a collection is
+     * read straight from the plist, without the bookkeeping a whole decode needs.
+     */
+    BPItem decodeObject(int index) throws BinaryPlistException {
+        BPItem item;
+        try {
+            item = readItem(offsetTable.get(index), scratch);
+        } catch (DecodingException e) {
+            throw new BinaryPlistException(e.getMessage());
+        }
+        return (item instanceof BPExpandableItem) ? decode(index) : item;
+    }
 
-        if (log.isLoggable(Level.FINE)) {
+    /**
+     * Decodes the object with the given index and everything it contains.
+     */
+    private BPItem decode(int index) throws BinaryPlistException {
+        tree = new BPExpandableItem.Tree();
+        itemCount = (int) trailer.getNumObjects();
+        if (items == null || items.length < itemCount) {
+            items = new BPItem[itemCount];
+        }
+        if (stringPool != null && (keys == null || keys.length < itemCount)) {
+            keys = new BPString[itemCount];
+        }
+
+        if (BinaryPlist.tracing(log)) {
             log.fine("sortVersion: " + trailer.getSortVersion());
             log.fine("offsetIntSize: " + trailer.getOffsetIntSize());
             log.fine("objectRefSize: " + trailer.getObjectRefSize());
@@ -69,168 +229,514 @@ public class BinaryPlistDecoder {
             log.fine("Offset table length: " + offsetTable.getSize());
         }
 
-        BPItem item = getItemAtIndex((int)(trailer.getTopObject()));
+        try {
+            if (pool != null) {
+                return decodeInParallel(index);
+            }
+
+            BPItem item = getItemAtIndex(index);
 
-        while (offsetsToExpand.peek() != null) {
-            int offset = offsetsToExpand.poll();
-            BPItem itemToExpand = items.get(offset);
-            itemToExpand.expand(this);
+            while (queueHead < queueTail) {
+                int next = indexesToExpand[queueHead++];
+                items[next].expand(this);
+            }
+
+            return item;
+        } catch (DecodingException e) {
+            // a bad ref or length found while expanding - decode() reports it as checked
+            throw new BinaryPlistException(e.getMessage());
         }
+    }
 
+    BPItem getItemAtIndex(int index) {
+        if (index < 0 || index >= itemCount) {
+            throw new DecodingException("Object ref " + index + " out of range - plist has " + itemCount + " objects");
+        }
+        BPItem item = items[index];
+        if (item != null) {
+            if (BinaryPlist.tracing(log)) log.fine("Already have item at index " + index);
+            return item;
+        }
+        item = readItem(offsetTable.get(index), scratch);
+        items[index] = item;
+        if (item instanceof BPExpandableItem) {
+            if (lazy) {
+                // leave it to the collection to expand itself when it's first used
+                ((BPExpandableItem) item).expandLazily(this);
+            } else {
+                // mark it for expansion
+                if (BinaryPlist.tracing(log)) log.fine("Marking item at index " + index + " for expansion");
+                enqueue(index);
+            }
+        }
         return item;
     }
 
-    BPItem getItemAtIndex(int index) {
-        return getItem(offsetTable.get(index));
+    /**
+     * As getItemAtIndex, but for dict keys, which are taken from the string pool if there
+     * is one. Pooled keys are kept apart from the other items, so an object which is both
+     * a key and a value only has its pooled BPString where it's a key, whichever is decoded
+     * first.
+     */
+    BPItem getKeyAtIndex(int index) {
+        if (stringPool != null && index >= 0 && index < itemCount) {
+            BPString key = keys[index];
+            if (key == null) {
+                key = readPooledString(offsetTable.get(index));
+            }
+            if (key != null) {
+                keys[index] = key;
+                return key;
+            }
+        }
+        return getItemAtIndex(index);
     }
 
-    BPItem getItem(int offset) {
-        if (items.containsKey(offset)) {
-            log.fine("Already have item at offset " + offset);
-            return items.get(offset);
+    /**
+     * Returns the pooled BPString for the object at the given offset, or null if it's not
+     * an ASCII string, or not one which can be pooled.
+     */
+    private BPString readPooledString(long offset) {
+        int marker = 0xff & data.get(offset);
+        if ((marker & 0xf0) != BinaryPlist.STRING_ASCII) {
+            return null;
+        }
+        int length = marker & 0x0f;
+        long position = offset + 1;
+        if (length == 0x0f) {
+            length = readAnInt(position);
+            position += intLength(position);
+        }
+        return stringPool.get(data, position, length);
+    }
+
+    /**
+     * Expands the item, if it's a collection, and everything inside it. A set must do this
+     * to its items before adding them, because adding them hashes them, and a collection
+     * which hasn't been expanded yet would hash as if it were empty.
+     */
+    void expandSubtree(BPItem item) throws BinaryPlistException {
+        if (item instanceof BPExpandableItem) {
+            expandSubtree(item, Collections.newSetFromMap(new IdentityHashMap<BPItem, Boolean>()));
+        }
+    }
+
+    private void expandSubtree(BPItem item, Set<BPItem> seen) throws BinaryPlistException {
+        // seen stops a malformed plist with a cycle in it sending this round in circles
+        if (item instanceof BPExpandableItem && seen.add(item)) {
+            ((BPExpandableItem) item).expand(this);
+            Collection<BPItem> children;
+            if (item instanceof BPDict) {
+                children = ((BPDict) item).values();
+            } else if (item instanceof BPArray) {
+                children = (BPArray) item;
+            } else {
+                children = (BPSet) item;
+            }
+            for (BPItem child : children) {
+                expandSubtree(child, seen);
+            }
+        }
+    }
+
+    /**
+     * Decodes using the fork join pool. First the objects reachable from the given one are
+     * found, following just the collections' refs, so that - as in a sequential decode -
+     * objects nothing refers to are never read. Those objects are then read, split into
+     * ranges of indexes which are read in parallel; each object is read exactly once, so
+     * objects which are referred to more than once are still shared. Then the collections are
+     * expanded, again in parallel - expanding one only involves looking up already-read
+     * items. Sets are expanded last, one at a time, since expanding a set hashes whatever is
+     * in it. All the reads from the plist are absolute, so the threads can share the buffer.
+     */
+    private BPItem decodeInParallel(int index) throws BinaryPlistException {
+        try {
+            markReachable(index);
+            pool.invoke(new ParallelRead(0, itemCount));
+            pool.invoke(new ParallelExpand(0, itemCount));
+        } catch (DecodingException e) {
+            // give back the same exception a sequential decode would have thrown
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof BinaryPlistException) {
+                    throw (BinaryPlistException) cause;
+                }
+            }
+            throw e;
+        }
+        for (int i=0; i< itemCount; i++) {
+            BPItem item = items[i];
+            if (item instanceof BPSet) {
+                ((BPSet) item).expand(this);
+            }
+        }
+        return items[index];
+    }
+
+    private final static int PARALLEL_THRESHOLD = 2048;
+
+    // bits in reached
+    private final static byte REACHED_AS_ITEM = 1;
+    private final static byte REACHED_AS_KEY = 2;
+
+    /**
+     * Marks, in reached, every object which can be reached from the given one, and whether
+     * it's reached as a dict key, as a value or item, or both. Only the collections are read,
+     * and only as far as their refs; a bad ref fails just as it would in a sequential decode.
+     */
+    private void markReachable(int index) {
+        if (reached == null || reached.length < itemCount) {
+            reached = new byte[itemCount];
         } else {
-            // mark whatever we return for expansion
-            log.fine("Marking item at offset " + offset + " for expansion");
-            offsetsToExpand.offer(offset);
-            BPItem toReturn = BPNull.Instance;
-
-            data.position(offset);
-            short next = (short) data.get();
-            switch (next) {
-                case BinaryPlist.NULL:
-                    log.fine("Null");
-                    toReturn = BPNull.Instance;
-                    break;
-                case BinaryPlist.BOOL_FALSE:
-                    log.fine("Bool_False");
-                    toReturn = BPBoolean.FALSE;
-                    break;
-                case BinaryPlist.BOOL_TRUE:
-                    log.fine("Bool_True");
-                    toReturn = BPBoolean.TRUE;
-                    break;
-                case BinaryPlist.FILL:
-                    log.fine("Fill");
-                    toReturn = BPNull.Instance;
-                    break;
-                case BinaryPlist.DATE:
-                    log.fine("Date");
-                    byte[] dateData = new byte[8];
-                    data.get(dateData);
-                    toReturn = new BPDate(dateData);
-                    break;
-                default:
-                    final short littleNibble = (short) (next & 0x000f);
-                    final short bigNibble = (short) (next & 0x00f0);
-                    switch (bigNibble) {
-                        case BinaryPlist.INT:
-                            int numIntBytes = twoToThe(littleNibble);
-                            log.fine(String.format("Int %d bytes", numIntBytes));
-                            byte[] intData = new byte[numIntBytes];
-                            data.get(intData);
-                            toReturn = BPInt.from(intData);
-                            break;
-                        case BinaryPlist.REAL:
-                            int numRealBytes = twoToThe(littleNibble);
-                            log.fine(String.format("Real %d bytes", numRealBytes));
-                            byte[] realData = new byte[numRealBytes];
-                            data.get(realData);
-                            toReturn = BPReal.from(realData);
-                            break;
-                        case BinaryPlist.DATA:
-                            int numDataBytes = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("Data %d bytes", numDataBytes));
-                            byte[] dataData = new byte[numDataBytes];
-                            data.get(dataData);
-                            toReturn = new BPData(dataData);
-                            break;
-                        case BinaryPlist.STRING_ASCII:
-                            int numStringAsciiChars = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("String_Ascii %d chars", numStringAsciiChars));
-                            byte[] stringAsciiData = new byte[numStringAsciiChars];
-                            data.get(stringAsciiData);
-                            final BPString bpStringAscii = BPString.ascii(stringAsciiData);
-                            log.fine("String: " + bpStringAscii.getValue());
-                            toReturn = bpStringAscii;
-                            break;
-                        case BinaryPlist.STRING_UNICODE:
-                            int numStringUnicodeChars = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("String_Unicode %d chars", numStringUnicodeChars));
-                            byte[] stringUnicodeData = new byte[numStringUnicodeChars << 1];
-                            data.get(stringUnicodeData);
-                            final BPString bpStringUnicode = BPString.unicode(stringUnicodeData);
-                            log.fine("String: " + bpStringUnicode.getValue());
-                            toReturn = bpStringUnicode;
-                            break;
-                        case BinaryPlist.UID:
-                            int numUidBytes = littleNibble + 1;
-                            log.fine(String.format("UID %d bytes", numUidBytes));
-
-                            byte[] uidData = new byte[numUidBytes];
-                            data.get(uidData);
-                            toReturn = new BPUid(uidData);
-                            break;
-                        case BinaryPlist.ARRAY:
-                            int numArrayItems = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("Array %d items", numArrayItems));
-                            int[] arrayItemOffsets = new int[numArrayItems];
-                            for (int i=0; i< numArrayItems; i++) {
-                                arrayItemOffsets[i] = offsetReader.getOffset(data);
-                            }
-                            toReturn = new BPArray(arrayItemOffsets);
-                            break;
-                        case BinaryPlist.SET:
-                            int numSetItems = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("Set %d items", numSetItems));
-                            int[] setItemOffsets = new int[numSetItems];
-                            for (int i=0; i< numSetItems; i++) {
-                                setItemOffsets[i] = offsetReader.getOffset(data);
-                            }
-                            toReturn = new BPSet(setItemOffsets);
-                            break;
-                        case BinaryPlist.DICT:
-                            int numDictItems = (littleNibble < 0x0f) ? littleNibble : readAnInt();
-                            log.fine(String.format("Dict %d items", numDictItems));
-                            int[] keyOffsets = new int[numDictItems];
-                            int[] valueOffsets = new int[numDictItems];
-                            for (int i=0; i< numDictItems; i++) {
-                                keyOffsets[i] = offsetReader.getOffset(data);
-                            }
-                            for (int i=0; i< numDictItems; i++) {
-                                valueOffsets[i] = offsetReader.getOffset(data);
-                            }
-                            toReturn = new BPDict(keyOffsets, valueOffsets);
-                            break;
-                        default:
-                            log.fine("Unused");
-                            toReturn = BPNull.Instance;
-                            break;
+            Arrays.fill(reached, 0, itemCount, (byte) 0);
+        }
+        // the queue of collections to expand is empty until the items are read, so it's borrowed here
+        reach(index, REACHED_AS_ITEM);
+        int size = offsetReader.getSize();
+        while (queueHead < queueTail) {
+            long offset = offsetTable.get(indexesToExpand[queueHead++]);
+            int marker = 0xff & data.get(offset);
+            int type = marker & 0xf0;
+            if (type != BinaryPlist.ARRAY && type != BinaryPlist.SET && type != BinaryPlist.DICT) {
+                continue;
+            }
+            int count = marker & 0x0f;
+            long position = offset + 1;
+            if (count == 0x0f) {
+                count = readAnInt(position);
+                position += intLength(position);
+            }
+            byte first = (type == BinaryPlist.DICT) ? REACHED_AS_KEY : REACHED_AS_ITEM;
+            for (int i=0; i< count; i++) {
+                reach(offsetReader.getOffset(data, position), first);
+                position += size;
+            }
+            if (type == BinaryPlist.DICT) {
+                for (int i=0; i< count; i++) {
+                    reach(offsetReader.getOffset(data, position), REACHED_AS_ITEM);
+                    position += size;
+                }
+            }
+        }
+        queueHead = 0;
+        queueTail = 0;
+    }
+
+    private void reach(int index, byte how) {
+        if (index < 0 || index >= itemCount) {
+            throw new DecodingException("Object ref " + index + " out of range - plist has " + itemCount + " objects");
+        }
+        if (reached[index] == 0) {
+            enqueue(index);
+        }
+        reached[index] |= how;
+    }
+
+    @SuppressWarnings("serial")
+    private class ParallelRead extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        ParallelRead(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParallelRead(from, middle), new ParallelRead(middle, to));
+                return;
+            }
+            Scratch scratch = new Scratch();
+            for (int i=from; i< to; i++) {
+                int how = reached[i];
+                if (how == 0) {
+                    continue;
+                }
+                long offset = offsetTable.get(i);
+                if ((how & REACHED_AS_KEY) != 0) {
+                    BPString key = (stringPool != null) ? readPooledString(offset) : null;
+                    if (key != null) {
+                        keys[i] = key;
+                    } else {
+                        // a key which can't be pooled is an ordinary item
+                        how |= REACHED_AS_ITEM;
+                    }
+                }
+                if ((how & REACHED_AS_ITEM) != 0) {
+                    items[i] = readItem(offset, scratch);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ParallelExpand extends RecursiveAction {
+        private final int from;
+        private final int to;
 
+        ParallelExpand(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParallelExpand(from, middle), new ParallelExpand(middle, to));
+                return;
+            }
+            for (int i=from; i< to; i++) {
+                BPItem item = items[i];
+                if (item instanceof BPExpandableItem && !(item instanceof BPSet)) {
+                    try {
+                        ((BPExpandableItem) item).expand(BinaryPlistDecoder.this);
+                    } catch (BinaryPlistException e) {
+                        throw new DecodingException(e.getMessage(), e);
                     }
+                }
             }
-            items.put(offset, toReturn);
-            return toReturn;
         }
     }
 
+    private void enqueue(int index) {
+        if (queueTail == indexesToExpand.length) {
+            indexesToExpand = Arrays.copyOf(indexesToExpand, queueTail << 1);
+        }
+        indexesToExpand[queueTail++] = index;
+    }
+
     /**
-     * This is called whenever we're expecting the next thing in the stream to be an int giving the
+     * Reads the object at the given offset. Collections are returned unexpanded.
+     */
+    private BPItem readItem(long offset, Scratch scratch) {
+        final boolean trace = BinaryPlist.tracing(log);
+        BPItem toReturn = BPNull.Instance;
+
+        short next = (short) (0xff & data.get(offset));
+        switch (next) {
+            case BinaryPlist.NULL:
+                if (trace) log.fine("Null");
+                toReturn = BPNull.Instance;
+                break;
+            case BinaryPlist.BOOL_FALSE:
+                if (trace) log.fine("Bool_False");
+                toReturn = BPBoolean.FALSE;
+                break;
+            case BinaryPlist.BOOL_TRUE:
+                if (trace) log.fine("Bool_True");
+                toReturn = BPBoolean.TRUE;
+                break;
+            case BinaryPlist.FILL:
+                if (trace) log.fine("Fill");
+                toReturn = BPNull.Instance;
+                break;
+            case BinaryPlist.DATE:
+                if (trace) log.fine("Date");
+                toReturn = new BPDate(data.getDouble(offset + 1));
+                break;
+            default:
+                final short littleNibble = (short) (next & 0x000f);
+                final short bigNibble = (short) (next & 0x00f0);
+                // where the object's contents start, after the marker byte and any length int
+                long position = offset + 1;
+                switch (bigNibble) {
+                    case BinaryPlist.INT:
+                        int numIntBytes = twoToThe(littleNibble);
+                        if (trace) log.fine(String.format("Int %d bytes", numIntBytes));
+                        toReturn = BPInt.read(data, position, numIntBytes);
+                        break;
+                    case BinaryPlist.REAL:
+                        int numRealBytes = twoToThe(littleNibble);
+                        if (trace) log.fine(String.format("Real %d bytes", numRealBytes));
+                        toReturn = BPReal.read(data, position, numRealBytes);
+                        break;
+                    case BinaryPlist.DATA:
+                        int numDataBytes = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numDataBytes = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("Data %d bytes", numDataBytes));
+                        toReturn = new BPData(getBytes(position, numDataBytes));
+                        break;
+                    case BinaryPlist.STRING_ASCII:
+                        int numStringAsciiChars = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numStringAsciiChars = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("String_Ascii %d chars", numStringAsciiChars));
+                        final BPString bpStringAscii = BPString.get(readAsciiString(position, numStringAsciiChars, scratch), BPString.EncodingType.ASCII);
+                        if (trace) log.fine("String: " + bpStringAscii.getValue());
+                        toReturn = bpStringAscii;
+                        break;
+                    case BinaryPlist.STRING_UNICODE:
+                        int numStringUnicodeChars = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numStringUnicodeChars = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("String_Unicode %d chars", numStringUnicodeChars));
+                        final BPString bpStringUnicode = BPString.get(readUnicodeString(position, numStringUnicodeChars, scratch), BPString.EncodingType.UTF16);
+                        if (trace) log.fine("String: " + bpStringUnicode.getValue());
+                        toReturn = bpStringUnicode;
+                        break;
+                    case BinaryPlist.UID:
+                        int numUidBytes = littleNibble + 1;
+                        if (trace) log.fine(String.format("UID %d bytes", numUidBytes));
+                        toReturn = new BPUid(getBytes(position, numUidBytes));
+                        break;
+                    case BinaryPlist.ARRAY:
+                        int numArrayItems = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numArrayItems = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("Array %d items", numArrayItems));
+                        toReturn = new BPArray(readOffsets(position, numArrayItems));
+                        break;
+                    case BinaryPlist.SET:
+                        int numSetItems = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numSetItems = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("Set %d items", numSetItems));
+                        toReturn = new BPSet(readOffsets(position, numSetItems));
+                        break;
+                    case BinaryPlist.DICT:
+                        int numDictItems = littleNibble;
+                        if (littleNibble == 0x0f) {
+                            numDictItems = readAnInt(position);
+                            position += intLength(position);
+                        }
+                        if (trace) log.fine(String.format("Dict %d items", numDictItems));
+                        int[] keyOffsets = readOffsets(position, numDictItems);
+                        int[] valueOffsets = readOffsets(position + numDictItems * offsetReader.getSize(), numDictItems);
+                        toReturn = new BPDict(keyOffsets, valueOffsets);
+                        break;
+                    default:
+                        if (trace) log.fine("Unused");
+                        toReturn = BPNull.Instance;
+                        break;
+
+                }
+        }
+        if (toReturn instanceof BPExpandableItem) {
+            ((BPExpandableItem) toReturn).tree = tree;
+        }
+        return toReturn;
+    }
+
+    /**
+     * This is called whenever we're expecting the int at the given position to give the
      * size of something.
      *
      * @return
      */
-    private int readAnInt() {
-        short next = data.get();
+    private int readAnInt(long position) {
+        short next = data.get(position);
         final short littleNibble = (short) (next & 0x000f);
         final short bigNibble = (short) (next & 0x00f0);
         if (bigNibble != BinaryPlist.INT) {
-            throw new RuntimeException("Asked to read an int, but next thing in stream wasn't one");
+            throw new DecodingException("Asked to read an int, but next thing in stream wasn't one");
         }
         int numIntBytes = twoToThe(littleNibble);
-        byte[] intData = new byte[numIntBytes];
-        data.get(intData);
-        BPInt ret = BPInt.from(intData);
-        return ret.getValue();
+        long value;
+        switch (numIntBytes) {
+            case 1:
+                value = 0xff & data.get(position + 1);
+                break;
+            case 2:
+                value = 0xffff & data.getShort(position + 1);
+                break;
+            case 4:
+                value = 0xffffffffL & data.getInt(position + 1);
+                break;
+            case 8:
+                value = data.getLong(position + 1);
+                break;
+            default:
+                throw new DecodingException("Can't read a " + numIntBytes + " byte length");
+        }
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new DecodingException("Length " + value + " out of range");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Number of bytes taken up by the int (marker byte included) at the given position.
+     */
+    private int intLength(long position) {
+        return 1 + twoToThe((short) (data.get(position) & 0x000f));
+    }
+
+    private int[] readOffsets(long position, int count) {
+        int[] offsets = new int[count];
+        int size = offsetReader.getSize();
+        for (int i=0; i< count; i++) {
+            offsets[i] = offsetReader.getOffset(data, position);
+            position += size;
+        }
+        return offsets;
+    }
+
+    /**
+     * Copies bytes out of the plist, checking first that they're all there, so that a bad
+     * length can't ask for a huge array.
+     */
+    private byte[] getBytes(long position, int length) {
+        if (length > data.size() - position) {
+            throw new DecodingException(length + " bytes at " + position + " run past the end of the plist");
+        }
+        byte[] bytes = new byte[length];
+        data.get(position, bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes an ASCII string straight from the plist. As with the ASCII charset, bytes
+     * outside the ASCII range become the replacement character.
+     */
+    private String readAsciiString(long position, int length, Scratch scratch) {
+        char[] chars = scratch.chars(length);
+        data.getAscii(position, chars, length);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Decodes a UTF-16 (big-endian, no BOM) string of the given number of chars straight
+     * from the plist.
+     */
+    private String readUnicodeString(long position, int length, Scratch scratch) {
+        char[] chars = scratch.chars(length);
+        data.getUtf16(position, chars, length);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Scratch space for decoding strings, reused from one string to the next. There's one
+     * per thread doing the decoding.
+     */
+    private static class Scratch {
+        private char[] chars = new char[64];
+
+        char[] chars(int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length << 1)];
+            }
+            return chars;
+        }
+
+        void trim() {
+            if (chars.length > MAX_RETAINED_CAPACITY) {
+                chars = new char[64];
+            }
+        }
     }
 
     private int twoToThe(short exponent) {
@@ -272,4 +778,107 @@ public class BinaryPlistDecoder {
         }
     }
 
+    /**
+     * Options controlling how a plist is decoded. All of the methods return this, so they
+     * can be chained: new BinaryPlistDecoder.Options().lazy(true)
+     */
+    public static class Options {
+        private boolean lazy = false;
+        private boolean frozen = false;
+        private BPStringPool stringPool = null;
+        private ForkJoinPool pool = null;
+
+        /**
+         * If true, collections are not expanded while decoding; each BPDict, BPArray or BPSet
+         * is expanded the first time one of its methods is called instead. This saves
+         * a lot of work when only a small part of a large plist is used, at the cost of
+         * keeping the plist data around for as long as any unexpanded collection is
+         * reachable. Lazily decoded trees must not be shared between threads until they
+         * have been fully expanded. Defaults to false.
+         */
+        public Options lazy(boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
+
+        /**
+         * If true, the decoded collections are frozen (see BPDict.freeze()), so they can't
+         * be changed and can safely be shared between threads - e.g. one decoded copy of a
+         * config plist read by every request. A plist which contains itself can't be
+         * frozen, and fails to decode. Overrides lazy. Defaults to false.
+         */
+        public Options frozen(boolean frozen) {
+            this.frozen = frozen;
+            return this;
+        }
+
+        /**
+         * If set, ASCII dictionary keys are looked up in the given pool, and added to it if
+         * they're not there, so that the same key decodes to the same BPString in every
+         * plist decoded with the pool. Worthwhile when many plists with the same keys are
+         * decoded, or kept around. The pool may be shared between threads. Defaults to
+         * null, i.e. no pooling.
+         */
+        public Options stringPool(BPStringPool stringPool) {
+            this.stringPool = stringPool;
+            return this;
+        }
+
+        /**
+         * If true, the plist is decoded by several threads at once, using a fork join pool
+         * shared by all parallel decodes. Only worth it for big plists - tens of thousands
+         * of objects or more. The decoded tree is the same as a sequential decode would
+         * give. Ignored if decoding lazily. Defaults to false.
+         */
+        public Options parallel(boolean parallel) {
+            this.pool = parallel ? SharedPool.POOL : null;
+            return this;
+        }
+
+        /**
+         * As parallel(true), but using the given pool.
+         */
+        public Options parallel(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        boolean isLazy() {
+            return lazy;
+        }
+
+        boolean isFrozen() {
+            return frozen;
+        }
+
+        ForkJoinPool getPool() {
+            return pool;
+        }
+
+        BPStringPool getStringPool() {
+            return stringPool;
+        }
+    }
+
+    // only created if somebody decodes or encodes in parallel
+    static class SharedPool {
+        final static ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    /**
+     * Thrown, unchecked, when expanding a collection fails somewhere a checked exception
+     * can't be - i.e. outside a call to decode(), when a lazily decoded collection is
+     * first used. decode() itself always reports problems as a BinaryPlistException.
+     */
+    public static class DecodingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public DecodingException(String message) {
+            super(message);
+        }
+
+        public DecodingException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
@@ -16,383 +16,718 @@
 
 package uk.co.sromo.blister;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 /**
- * TODO: Documentation
+ * Encodes a tree of BPItems as a binary plist, in two passes. Visiting the tree (i.e.
+ * root.accept(encoder)) gives every distinct object a reference number, parents before
+ * children, and records the references held by each collection. Collections are
+ * told apart by identity and scalars by value (see BinaryPlistRefTable), so this pass is
+ * linear in the number of objects. After that the number of
+ * objects, and so the size of an object reference, is known, so getBytes() or write() can
+ * write each object exactly once, in reference order, followed by the offset table and the
+ * trailer.
+ *
+ * BinaryPlist.encode makes a new encoder for every plist. To encode a lot of plists, keep an
+ * encoder (one per thread - encoders aren't thread safe) and call its encode methods, which
+ * reset it and reuse its tables and output buffer from one plist to the next.
  */
 public class BinaryPlistEncoder implements BPVisitor {
 
     private final static Logger log = Logger.getLogger(BinaryPlistEncoder.class.getSimpleName());
-    private final static byte[] EMPTY = new byte[0];
 
-    private final Map<Integer, byte[]> objectData = new LinkedHashMap<Integer, byte[]>(); // object ref -> bytes for that object
-    private final Set<Integer> collectionTypes = new HashSet<Integer>(); // object refs of collection types which need special treatment
-    private final Map<BPItem, Integer> objectRefs = new LinkedHashMap<BPItem, Integer>(); // BPItem -> object ref
-    int currentObjectRef = 0;
+    // how much output is buffered before being written to a channel
+    private final static int CHUNK_SIZE = 64 * 1024;
+
+    // a reused encoder drops tables and buffers bigger than these rather than keeping them
+    static final int MAX_RETAINED_CAPACITY = 1 << 16;
+    static final int MAX_RETAINED_BYTES = 1 << 20;
+
+    private final boolean uniqueCollections;
+    private final ForkJoinPool pool; // null unless writing in parallel
+    private final BinaryPlistRefTable objectRefs; // BPItem -> object ref
+    private final CollectionTable collectionRefs = new CollectionTable(); // only used if uniqueCollections
+    private BPItem[] objects = new BPItem[16]; // object ref -> BPItem
+    private int numberOfObjects = 0;
+    private int[] childRefStarts = new int[16]; // object ref of a collection -> index of its first child in childRefs
+    private int[] childRefs = new int[16]; // the object refs held by each collection, one collection after another
+    private int childRefCount = 0;
+    private long stringAndDataBytes = 0; // lets getBytes() size its buffer up front
+    private long[] offsets = new long[16]; // object ref -> offset in the output, filled in by write
+    private BinaryPlistOutput output; // kept by getBytes for the next plist, if it can be
+
+    public BinaryPlistEncoder() {
+        this(new Options());
+    }
 
-    public void visit(BPArray item) {
-        if (!objectRefs.containsKey(item)) {
-            // store this with an empty representation so that it gets a reference number
-            int myRef = store(item, EMPTY);
-            // ensure all the children are stored
-            for(BPItem child : item) {
-                child.accept(this);
-            }
-            // so now we have object references for all children.
-            // we can store the array (temporarily) with 4-byte int offsets.
-            ByteBuffer bb = ByteBuffer.allocate(item.size() * 4 + 1);
-            // identify the object type for later...
-            bb.put((byte) BinaryPlist.ARRAY);
-            for(BPItem child : item) {
-                if (!objectRefs.containsKey(child)) {
-                    throw new EncodingException("Expected an object ref for " + child + " after visiting array");
-                }
-                bb.putInt(objectRefs.get(child));
-            }
-            // now we store the list of item references - note that this is not the true representation of the array
-            objectData.put(myRef, bb.array());
-            collectionTypes.add(myRef);
+    /**
+     * Makes an encoder with the given options, which are copied, so changing them afterwards
+     * has no effect.
+     */
+    public BinaryPlistEncoder(Options options) {
+        this.uniqueCollections = options.isUniqueCollections();
+        this.pool = options.getPool();
+        this.objectRefs = new BinaryPlistRefTable(64, options.getMaxUniquedDataLength());
+    }
+
+    /**
+     * Encodes the supplied plist, as BinaryPlist.encode(BPItem) does, resetting the encoder
+     * first.
+     */
+    public byte[] encode(BPItem root) throws BinaryPlistException {
+        try {
+            start(root);
+            return getBytes();
+        } finally {
+            reset();
         }
     }
 
-    public void visit(BPBoolean item) {
-        if (!objectRefs.containsKey(item)) {
-            byte[] bytes = new byte[] { item.getValue() ? (byte) BinaryPlist.BOOL_TRUE : (byte) BinaryPlist.BOOL_FALSE};
-            store(item, bytes);
+    /**
+     * Encodes the supplied plist straight to a channel, which is left open, as
+     * BinaryPlist.encode(BPItem, WritableByteChannel) does, resetting the encoder first.
+     */
+    public void encode(BPItem root, WritableByteChannel channel) throws BinaryPlistException, IOException {
+        try {
+            start(root);
+            write(channel);
+        } finally {
+            reset();
         }
     }
 
+    /**
+     * Resets the encoder and visits the plist to be encoded.
+     */
+    void start(BPItem root) throws BinaryPlistException {
+        if (!root.canBeRoot()) {
+            throw new BinaryPlistException("BPItem of type " + root.getType() + " can't be the root of a Binary PList");
+        }
+        reset();
+        root.accept(this);
+    }
+
+    /**
+     * Forgets everything visited so far, so the encoder can be used for another plist. Its
+     * tables keep their capacity, unless they've grown very large.
+     */
+    public void reset() {
+        objectRefs.clear(MAX_RETAINED_CAPACITY * 2);
+        collectionRefs.clear();
+        if (objects.length > MAX_RETAINED_CAPACITY) {
+            objects = new BPItem[16];
+            childRefStarts = new int[16];
+            offsets = new long[16];
+        } else {
+            Arrays.fill(objects, 0, numberOfObjects, null);
+        }
+        if (childRefs.length > MAX_RETAINED_CAPACITY) {
+            childRefs = new int[16];
+        }
+        numberOfObjects = 0;
+        childRefCount = 0;
+        stringAndDataBytes = 0;
+    }
+
+    public void visit(BPArray item) {
+        visitCollection(item);
+    }
+
+    public void visit(BPBoolean item) {
+        storeIfNew(item);
+    }
+
     public void visit(BPData item) {
-        if (!objectRefs.containsKey(item)) {
-            byte[] itemBytes = item.getData();
-            byte[] itemHeader = getObjectHeader(BinaryPlist.DATA, itemBytes.length);
-            store(item, itemHeader, itemBytes);
+        if (storeIfNew(item) >= 0) {
+            stringAndDataBytes += item.getData().length;
         }
     }
 
     public void visit(BPDate item) {
-        if (!objectRefs.containsKey(item)) {
-            // TODO - implement this properly
-            byte[] bytes = new byte[] {(byte)BinaryPlist.DATE, 0,0,0,0,0,0,0,0};
-            store(item, bytes);
-        }
+        storeIfNew(item);
     }
 
     public void visit(BPDict item) {
-        if (!objectRefs.containsKey(item)) {
-            // store this with an empty representation so that it gets a reference number
-            int myRef = store(item, EMPTY);
-            // ensure all the children are stored
-            for(BPString key : item.keySet()) {
+        visitCollection(item);
+    }
+
+    public void visit(BPInt item) {
+        storeIfNew(item);
+    }
+
+    public void visit(BPNull item) {
+        storeIfNew(item);
+    }
+
+    public void visit(BPReal item) {
+        storeIfNew(item);
+    }
+
+    public void visit(BPSet item) {
+        visitCollection(item);
+    }
+
+    public void visit(BPString item) {
+        if (storeIfNew(item) >= 0) {
+            stringAndDataBytes += item.encodedLength();
+        }
+    }
+
+    public void visit(BPUid item) {
+        if (item.getValue().length > 16) {
+            throw new EncodingException("UID too long - " + item.getValue().length);
+        }
+        storeIfNew(item);
+    }
+
+    /**
+     * Visits a collection's children and records their refs. Normally the collection gets
+     * its own ref first, so that it has a lower reference number than its children, as
+     * CoreFoundation does it. When collections are being uniqued it can only be given a ref
+     * once its children's refs are known, since those are what identify an equal collection.
+     */
+    private void visitCollection(BPExpandableItem item) {
+        int myRef = -1;
+        if (uniqueCollections) {
+            if (objectRefs.get(item) >= 0) {
+                return;
+            }
+        } else {
+            myRef = storeIfNew(item);
+            if (myRef < 0) {
+                return;
+            }
+        }
+        // ensure all the children are stored
+        if (item.getType() == BPItem.Type.Dict) {
+            BPDict dict = (BPDict) item;
+            for(BPString key : dict.keySet()) {
                 key.accept(this);
-                BPItem value = item.get(key);
-                value.accept(this);
+                dict.get(key).accept(this);
             }
-            // so now we have object references for all children.
-            // we can store the array (temporarily) with 4-byte int offsets.
-            ByteBuffer bb = ByteBuffer.allocate(item.size() * 8 + 1);
-            // identify the object type for later...
-            bb.put((byte) BinaryPlist.DICT);
-            for(BPString key : item.keySet()) {
-                if (!objectRefs.containsKey(key)) {
-                    throw new EncodingException("Expected an object ref for key " + key + " after visiting dict");
-                }
-                bb.putInt(objectRefs.get(key));
+        } else {
+            for(BPItem child : itemsOf(item)) {
+                child.accept(this);
             }
-
-            for(BPString key : item.keySet()) {
-                BPItem value = item.get(key);
-                if (!objectRefs.containsKey(value)) {
-                    throw new EncodingException("Expected an object ref for value " + value + " after visiting dict");
-                }
-                bb.putInt(objectRefs.get(value));
+        }
+        // so now we have object references for all children - for a dict, keys first, then values
+        int start = childRefCount;
+        if (item.getType() == BPItem.Type.Dict) {
+            BPDict dict = (BPDict) item;
+            for(BPString key : dict.keySet()) {
+                addChildRef(key, "dict key");
+            }
+            for(BPString key : dict.keySet()) {
+                addChildRef(dict.get(key), "dict value");
+            }
+        } else {
+            for(BPItem child : itemsOf(item)) {
+                addChildRef(child, item.getType().toString());
+            }
+        }
+        if (myRef < 0) {
+            myRef = collectionRefs.get(item.getType(), start, childRefCount);
+            if (myRef >= 0) {
+                // an equal collection has already been stored, so forget these child refs and share its ref
+                childRefCount = start;
+                objectRefs.putIfAbsent(item, myRef);
+                return;
             }
-            // now we store the list of item references - note that this is not the true representation of the array
-            objectData.put(myRef, bb.array());
-            collectionTypes.add(myRef);
+            myRef = storeIfNew(item);
+            collectionRefs.add(myRef, start, childRefCount);
         }
+        childRefStarts[myRef] = start;
     }
 
-    public void visit(BPInt item) {
-        if (!objectRefs.containsKey(item)) {
-            long lValue = item.getLongValue();
-            if (lValue < 0 || item.getSize() == BPInt.Size.Long) {
-                store(item, new byte[] {(byte) (BinaryPlist.INT | 0x03),
-                        (byte) ((lValue >> 56) & 0xff),
-                        (byte) ((lValue >> 48) & 0xff),
-                        (byte) ((lValue >> 40) & 0xff),
-                        (byte) ((lValue >> 32) & 0xff),
-                        (byte) ((lValue >> 24) & 0xff),
-                        (byte) ((lValue >> 16) & 0xff),
-                        (byte) ((lValue >> 8) & 0xff),
-                        (byte) (lValue & 0xff) });
+    // the items of an array or set, typed without an unchecked cast
+    private static Collection<BPItem> itemsOf(BPExpandableItem item) {
+        return (item instanceof BPArray) ? (BPArray) item : (BPSet) item;
+    }
 
-            } else {
-                int value = item.getValue();
-                if (value < 256) {
-                     store(item, new byte[] {(byte) (BinaryPlist.INT | 0x00),
-                            (byte) value});
-                } else if (value < 65536) {
-                     store(item, new byte[] {(byte) (BinaryPlist.INT | 0x01),
-                            (byte) ((value >> 8) & 0xff),
-                            (byte) (value & 0xff) });
-                } else {
-                     store(item, new byte[] {(byte) (BinaryPlist.INT | 0x02),
-                            (byte) ((value >> 24) & 0xff),
-                            (byte) ((value >> 16) & 0xff),
-                            (byte) ((value >> 8) & 0xff),
-                            (byte) (value & 0xff) });
-                }
-            }
+    /**
+     * Gives the item the next object ref and returns it, or returns -1 if the item (or,
+     * for a scalar, an equal one) already has a ref.
+     */
+    private int storeIfNew(BPItem item) {
+        int ref = numberOfObjects;
+        if (objectRefs.putIfAbsent(item, ref) >= 0) {
+            return -1;
+        }
+        if (ref == objects.length) {
+            objects = Arrays.copyOf(objects, ref << 1);
+            childRefStarts = Arrays.copyOf(childRefStarts, ref << 1);
         }
+        objects[ref] = item;
+        numberOfObjects++;
+        return ref;
     }
 
-    public void visit(BPNull item) {
-        if (!objectRefs.containsKey(item)) {
-            store(item, new byte[] {(byte) BinaryPlist.NULL});
+    private void addChildRef(BPItem child, String collectionType) {
+        int ref = objectRefs.get(child);
+        if (ref < 0) {
+            throw new EncodingException("Expected an object ref for " + child + " after visiting " + collectionType);
+        }
+        if (childRefCount == childRefs.length) {
+            childRefs = Arrays.copyOf(childRefs, childRefCount << 1);
         }
+        childRefs[childRefCount++] = ref;
     }
 
-    public void visit(BPReal item) {
-        if (!objectRefs.containsKey(item)) {
-            // TODO - implement this properly
-            store(item, new byte[] {(byte) (BinaryPlist.REAL | 0x00), 0});
+    /**
+     * Returns the binary plist for everything visited so far, as a byte array.
+     */
+    byte[] getBytes() {
+        // a guess which is enough for most plists, so the buffer rarely has to grow
+        long estimate = stringAndDataBytes + numberOfObjects * 12L + childRefCount * 2L + 64;
+        int capacity = (int) Math.min(estimate, Integer.MAX_VALUE - 8);
+        BinaryPlistOutput out = output;
+        if (out != null && capacity <= MAX_RETAINED_BYTES) {
+            out.clear(capacity);
+        } else {
+            out = new BinaryPlistOutput(capacity);
+        }
+        try {
+            write(out);
+        } catch (IOException e) {
+            // can't actually happen without a channel
+            throw new EncodingException("Couldn't write bytes - " + e.getMessage());
         }
+        byte[] bytes = out.toByteArray();
+        // the buffer can only be used again if it wasn't handed out as the result
+        output = (out.holds(bytes) || out.capacity() > MAX_RETAINED_BYTES) ? null : out;
+        return bytes;
     }
 
-    public void visit(BPSet item) {
-        if (!objectRefs.containsKey(item)) {
-            // store this with an empty representation so that it gets a reference number
-            int myRef = store(item, EMPTY);
-            // ensure all the children are stored
-            for(BPItem child : item) {
-                child.accept(this);
-            }
-            // so now we have object references for all children.
-            // we can store the array (temporarily) with 4-byte int offsets.
-            ByteBuffer bb = ByteBuffer.allocate(item.size() * 4 + 1);
-            // identify the object type for later...
-            bb.put((byte) BinaryPlist.SET);
-            for(BPItem child : item) {
-                if (!objectRefs.containsKey(child)) {
-                    throw new EncodingException("Expected an object ref for " + child + " after visiting set");
-                }
-                bb.putInt(objectRefs.get(child));
-            }
-            // now we store the list of item references - note that this is not the true representation of the array
-            objectData.put(myRef, bb.array());
-            collectionTypes.add(myRef);
+    /**
+     * Writes the binary plist for everything visited so far to the channel, which is
+     * left open. Only a small chunk of the output is buffered at any time, so there's no
+     * limit on the size of the plist; offsets and refs are written 8 bytes wide if they
+     * need to be.
+     */
+    void write(WritableByteChannel channel) throws IOException {
+        BinaryPlistOutput out = new BinaryPlistOutput(channel, CHUNK_SIZE);
+        write(out);
+        out.flush();
+    }
+
+    private void write(BinaryPlistOutput out) throws IOException {
+        out.writeInt((int)BinaryPlistHeader.MAGIC_1);
+        out.writeInt((int)BinaryPlistHeader.MAGIC_2);
+        if (offsets.length < numberOfObjects) {
+            offsets = new long[numberOfObjects];
+        }
+        int objectRefSize = bytesFor(numberOfObjects);
+        if (pool != null && numberOfObjects >= 2 * SHARD_SIZE) {
+            writeObjectsInParallel(out, offsets, objectRefSize);
+        } else {
+            writeObjects(out, 0, numberOfObjects, offsets, objectRefSize);
         }
+        long offsetTableOffset = out.position();
+        int offsetIntSize = bytesFor(offsetTableOffset);
+        for (int j=0; j< numberOfObjects; j++) {
+            out.writeSized(offsets[j], offsetIntSize);
+        }
+        /**
+         * http://www.opensource.apple.com/source/CF/CF-550/ForFoundationOnly.h
+         * <p/>
+         * typedef struct {
+         * uint8_t	_unused[5];
+         * uint8_t     _sortVersion;
+         * uint8_t	_offsetIntSize;
+         * uint8_t	_objectRefSize;
+         * uint64_t	_numObjects;
+         * uint64_t	_topObject;
+         * uint64_t	_offsetTableOffset;
+         * } CFBinaryPlistTrailer;
+         */
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0); // sort version
+        out.write((byte) offsetIntSize);
+        out.write((byte) objectRefSize);
+        out.writeLong((long) numberOfObjects);
+        // the root is the first object stored, or the last if collections were stored after their children
+        out.writeLong(uniqueCollections ? numberOfObjects - 1 : 0L);
+        out.writeLong(offsetTableOffset);
     }
 
-    public void visit(BPString item) {
-        if (!objectRefs.containsKey(item)) {
-            int length = item.length();
-            byte[] bytes = item.asBytes(); // can't use length of this - length needs to be number of chars
-            byte[] itemHeader = getObjectHeader(item.bpType(), length);
+    /**
+     * The number of bytes the format would use for an offset or ref up to the given value -
+     * the smallest of 1, 2, 4 or 8 which holds it.
+     */
+    static int bytesFor(long value) {
+        if (value < 0x100L) {
+            return 1;
+        } else if (value < 0x10000L) {
+            return 2;
+        } else if (value < 0x100000000L) {
+            return 4;
+        } else {
+            return 8;
+        }
+    }
 
-            store(item, itemHeader, bytes);
+    /**
+     * Writes objects from..to-1, recording the offset of each relative to the start of the
+     * output.
+     */
+    private void writeObjects(BinaryPlistOutput out, int from, int to, long[] offsets, int objectRefSize) throws IOException {
+        ObjectWriter writer = new ObjectWriter(out, objectRefSize);
+        for (int i=from; i< to; i++) {
+            long offset = out.position();
+            offsets[i] = offset;
+            if (BinaryPlist.tracing(log)) log.fine("Writing object " + i + " at offset " + offset);
+            writer.objectRef = i;
+            objects[i].accept(writer);
+            out.flushIfFull();
         }
     }
 
-    public void visit(BPUid item) {
-        if (!objectRefs.containsKey(item)) {
-            byte[] bytes = item.getValue();
-            if (bytes.length > 16) {
-                throw new EncodingException("UID too long - " + bytes.length);
+    /**
+     * Writes the objects using the fork join pool. They're split into shards of consecutive
+     * refs, each written into its own buffer by a separate task, and the buffers are then
+     * appended to the output in order, adjusting the offsets as they go. Shards are done a
+     * few at a time, so when writing to a channel only those need to be held in memory.
+     */
+    private void writeObjectsInParallel(BinaryPlistOutput out, long[] offsets, int objectRefSize) throws IOException {
+        int shardsAtOnce = pool.getParallelism() * 2;
+        for (int first = 0; first < numberOfObjects; first += SHARD_SIZE * shardsAtOnce) {
+            final List<Shard> shards = new ArrayList<Shard>(shardsAtOnce);
+            for (int from = first; from < numberOfObjects && shards.size() < shardsAtOnce; from += SHARD_SIZE) {
+                shards.add(new Shard(from, Math.min(from + SHARD_SIZE, numberOfObjects), offsets, objectRefSize));
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(shards);
+                }
+            });
+            for (Shard shard : shards) {
+                long base = out.position();
+                for (int i=shard.from; i< shard.to; i++) {
+                    offsets[i] += base;
+                }
+                out.write(shard.out);
+                out.flushIfFull();
             }
-            byte lengthMinus1 = (byte) (bytes.length - 1);
-            byte[] header = new byte[] {(byte) (BinaryPlist.UID | lengthMinus1)};
-            store(item, header, bytes);
         }
     }
 
-    private int store(BPItem item, byte[] representation) {
-        int ref = currentObjectRef;
-        objectRefs.put(item, ref);
-        objectData.put(ref, representation);
-        currentObjectRef++;
-        return ref;
-    }
+    private final static int SHARD_SIZE = 4096;
+
+    @SuppressWarnings("serial")
+    private class Shard extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final long[] offsets;
+        private final int objectRefSize;
+        private final BinaryPlistOutput out = new BinaryPlistOutput(CHUNK_SIZE);
+
+        Shard(int from, int to, long[] offsets, int objectRefSize) {
+            this.from = from;
+            this.to = to;
+            this.offsets = offsets;
+            this.objectRefSize = objectRefSize;
+        }
 
-    private void store(BPItem item, byte[] itemHeader, byte[] itemBytes) {
-        byte[] bytes = new byte[itemHeader.length + itemBytes.length];
-        System.arraycopy(itemHeader, 0, bytes, 0, itemHeader.length);
-        System.arraycopy(itemBytes, 0, bytes, itemHeader.length, itemBytes.length);
-        store(item, bytes);
+        @Override
+        protected void compute() {
+            try {
+                writeObjects(out, from, to, offsets, objectRefSize);
+            } catch (IOException e) {
+                // can't actually happen without a channel
+                throw new EncodingException("Couldn't write bytes - " + e.getMessage());
+            }
+        }
     }
 
-
-    private byte[] getObjectHeader(short objectType, int length) {
+    private static void writeObjectHeader(BinaryPlistOutput out, short objectType, int length) {
         if (length < 15) {
-            short sLength = (short) length;
-            return new byte[] {(byte) (objectType | sLength)};
+            out.write(objectType | length);
         } else {
-            byte objectHeaderByte = (byte) (objectType | 0x0f);
+            out.write(objectType | 0x0f);
             if (length < 256) {
-                return new byte[] {objectHeaderByte,
-                        (byte) (BinaryPlist.INT | 0x00),
-                        (byte) length};
+                out.write(BinaryPlist.INT | 0x00);
+                out.write(length);
             } else if (length < 65536) {
-                return new byte[] {objectHeaderByte,
-                        (byte) (BinaryPlist.INT | 0x01),
-                        (byte) ((length >> 8) & 0xff),
-                        (byte) (length & 0xff) };
+                out.write(BinaryPlist.INT | 0x01);
+                out.writeShort(length);
             } else {
-                return new byte[] {objectHeaderByte,
-                        (byte) (BinaryPlist.INT | 0x02),
-                        (byte) ((length >> 24) & 0xff),
-                        (byte) ((length >> 16) & 0xff),
-                        (byte) ((length >> 8) & 0xff),
-                        (byte) (length & 0xff) };
+                out.write(BinaryPlist.INT | 0x02);
+                out.writeInt(length);
             }
         }
     }
 
-    byte[] getBytes() {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            writeInt(baos, (int)BinaryPlistHeader.MAGIC_1);
-            writeInt(baos, (int)BinaryPlistHeader.MAGIC_2);
-            int offset = 8;
-            int numberOfObjects = objectData.size();
-            int[] offsets = new int[objectData.size()];
-            int objectRefSize = numberOfObjects < 256 ? 1 : (numberOfObjects < 65536 ? 2 : 4);
-            int i=0;
-            for (Map.Entry<Integer, byte[]> item : objectData.entrySet()) {
-                int objectRef = item.getKey();
-                if (objectRef != i) {
-                    throw new EncodingException("Out of sync - got object " + objectRef + " but expected " + i);
-                }
-                offsets[i] = offset;
-                log.fine("Writing object " + objectRef + " at offset " + offset);
-                byte[] objectData = item.getValue();
-                if (collectionTypes.contains(objectRef)) {
-                    objectData = resizeCollection(objectData, objectRefSize);
-                }
-                baos.write(objectData);
-                offset += objectData.length;
-                i++;
+    /**
+     * Visitor which writes the representation of a single object. Collections are written
+     * using the child references recorded when they were visited.
+     */
+    private class ObjectWriter implements BPVisitor {
+        private final BinaryPlistOutput out;
+        private final int objectRefSize;
+        int objectRef;
+
+        ObjectWriter(BinaryPlistOutput out, int objectRefSize) {
+            this.out = out;
+            this.objectRefSize = objectRefSize;
+        }
+
+        private void writeChildRefs(int count) {
+            int start = childRefStarts[objectRef];
+            for (int i=start; i< start + count; i++) {
+                out.writeSized(childRefs[i], objectRefSize);
             }
-            int offsetTableOffset = offset;
-            int offsetIntSize = offsetTableOffset < 256 ? 1 : ((offsetTableOffset < 65536) ? 2 : 4);
-            switch (offsetIntSize) {
-                case 1:
-                    for (int j=0; j< numberOfObjects; j++) {
-                        int anOffset = offsets[j];
-                        if (anOffset > 255) throw new EncodingException("Can't encode " + anOffset + " in one byte");
-                        baos.write((byte)(anOffset & 0xff));
-                    }
-                    break;
-                case 2:
-                    for (int j=0; j< numberOfObjects; j++) {
-                        int anOffset = offsets[j];
-                        if (anOffset > 65535) throw new EncodingException("Can't encode " + anOffset + " in one short");
-                        writeShort(baos, (short) (anOffset & 0xffff));
-                    }
-                    break;
-                default:
-                    for (int j=0; j< numberOfObjects; j++) {
-                        int anOffset = offsets[j];
-                        writeInt(baos, anOffset);
-                    }
-                    break;
+        }
+
+        public void visit(BPArray item) {
+            int size = item.size();
+            writeObjectHeader(out, BinaryPlist.ARRAY, size);
+            writeChildRefs(size);
+        }
+
+        public void visit(BPBoolean item) {
+            out.write(item.getValue() ? BinaryPlist.BOOL_TRUE : BinaryPlist.BOOL_FALSE);
+        }
+
+        public void visit(BPData item) {
+            byte[] itemBytes = item.getData();
+            writeObjectHeader(out, BinaryPlist.DATA, itemBytes.length);
+            out.write(itemBytes);
+        }
+
+        public void visit(BPDate item) {
+            // TODO - implement this properly
+            out.write(BinaryPlist.DATE);
+            out.writeLong(0L);
+        }
+
+        public void visit(BPDict item) {
+            int size = item.size();
+            writeObjectHeader(out, BinaryPlist.DICT, size);
+            writeChildRefs(size * 2);
+        }
+
+        public void visit(BPInt item) {
+            long lValue = item.getLongValue();
+            if (lValue < 0 || item.getSize() == BPInt.Size.Long) {
+                out.write(BinaryPlist.INT | 0x03);
+                out.writeLong(lValue);
+            } else {
+                int value = item.getValue();
+                if (value < 256) {
+                    out.write(BinaryPlist.INT | 0x00);
+                    out.write(value);
+                } else if (value < 65536) {
+                    out.write(BinaryPlist.INT | 0x01);
+                    out.writeShort(value);
+                } else {
+                    out.write(BinaryPlist.INT | 0x02);
+                    out.writeInt(value);
+                }
             }
-            /**
-             * http://www.opensource.apple.com/source/CF/CF-550/ForFoundationOnly.h
-             * <p/>
-             * typedef struct {
-             * uint8_t	_unused[5];
-             * uint8_t     _sortVersion;
-             * uint8_t	_offsetIntSize;
-             * uint8_t	_objectRefSize;
-             * uint64_t	_numObjects;
-             * uint64_t	_topObject;
-             * uint64_t	_offsetTableOffset;
-             * } CFBinaryPlistTrailer;
-             */
-            baos.write(0);
-            baos.write(0);
-            baos.write(0);
-            baos.write(0);
-            baos.write(0);
-            baos.write(0); // sort version
-            baos.write((byte) offsetIntSize);
-            baos.write((byte) objectRefSize);
-            writeLong(baos, (long) numberOfObjects);
-            writeLong(baos, 0L);
-            writeLong(baos, (long) offsetTableOffset);
-
-
-            return baos.toByteArray();
-        } catch (IOException e) {
-            throw new EncodingException("Couldn't write bytes - " + e.getMessage());
         }
 
+        public void visit(BPNull item) {
+            out.write(BinaryPlist.NULL);
+        }
+
+        public void visit(BPReal item) {
+            // TODO - implement this properly
+            out.write(BinaryPlist.REAL | 0x00);
+            out.write(0);
+        }
+
+        public void visit(BPSet item) {
+            int size = item.size();
+            writeObjectHeader(out, BinaryPlist.SET, size);
+            writeChildRefs(size);
+        }
+
+        public void visit(BPString item) {
+            // length needs to be number of chars, not bytes
+            writeObjectHeader(out, item.bpType(), item.length());
+            item.writeTo(out);
+        }
+
+        public void visit(BPUid item) {
+            byte[] bytes = item.getValue();
+            out.write(BinaryPlist.UID | (bytes.length - 1));
+            out.write(bytes);
+        }
     }
 
-    byte[] resizeCollection(byte[] collectionData, int objectRefSize) throws IOException {
-        ByteBuffer input = ByteBuffer.wrap(collectionData);
-        ByteArrayOutputStream output = new ByteArrayOutputStream(collectionData.length);
-        short type = (short)(0xff & input.get());
-        int numberOfItems = (collectionData.length - 1) / 4; // number of object references to read
-        int collectionSize = (type == BinaryPlist.DICT) ?  numberOfItems / 2 : numberOfItems;
-        log.fine("Resizing collection of type " + type + " size " + collectionSize + " with " + numberOfItems + " pointers");
-        output.write(getObjectHeader(type, collectionSize));
-        switch (objectRefSize) {
-            case 1:
-                for (int i=0; i< numberOfItems; i++) {
-                    int objectRef = input.getInt();
-                    if (objectRef > 255) throw new EncodingException("Can't encode " + objectRef + " in one byte");
-                    output.write((byte)(objectRef & 0xff));
+    /**
+     * Table of the collections stored so far when collections are being uniqued, keyed by
+     * type and the refs of their children. Because the children have already been uniqued,
+     * two collections with the same type and the same child refs in the same order are
+     * equal, so their structural hash is computed from the refs alone, once, bottom-up.
+     */
+    private class CollectionTable {
+        private int[] refs = new int[0]; // 0 means empty, otherwise object ref + 1
+        private int[] hashes = new int[0];
+        private int[] lengths = new int[0];
+        private int size = 0;
+
+        void clear() {
+            if (refs.length > MAX_RETAINED_CAPACITY * 2) {
+                refs = new int[0];
+                hashes = new int[0];
+                lengths = new int[0];
+            } else if (size > 0) {
+                Arrays.fill(refs, 0);
+            }
+            size = 0;
+        }
+
+        /**
+         * Returns the ref of a stored collection of the given type whose child refs are
+         * childRefs[start..end), or -1 if there isn't one.
+         */
+        int get(BPItem.Type type, int start, int end) {
+            if (size == 0) {
+                return -1;
+            }
+            int hash = hash(type, start, end);
+            int mask = refs.length - 1;
+            for (int i = hash & mask; refs[i] != 0; i = (i + 1) & mask) {
+                int ref = refs[i] - 1;
+                if (hashes[i] == hash && lengths[i] == end - start && objects[ref].getType() == type
+                        && sameRefs(childRefStarts[ref], start, end - start)) {
+                    return ref;
                 }
-                break;
-            case 2:
-                for (int i=0; i< numberOfItems; i++) {
-                    int objectRef = input.getInt();
-                    if (objectRef > 65535) throw new EncodingException("Can't encode " + objectRef + " in one short");
-                    writeShort(output, (short) (objectRef & 0xffff));
+            }
+            return -1;
+        }
+
+        void add(int ref, int start, int end) {
+            if ((size + 1) * 2 > refs.length) {
+                resize();
+            }
+            int hash = hash(objects[ref].getType(), start, end);
+            int mask = refs.length - 1;
+            int i = hash & mask;
+            while (refs[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            refs[i] = ref + 1;
+            hashes[i] = hash;
+            lengths[i] = end - start;
+            size++;
+        }
+
+        private boolean sameRefs(int otherStart, int start, int length) {
+            for (int i=0; i< length; i++) {
+                if (childRefs[otherStart + i] != childRefs[start + i]) {
+                    return false;
                 }
-                break;
-            default:
-                for (int i=0; i< numberOfItems; i++) {
-                    int objectRef = input.getInt();
-                    writeInt(output, objectRef);
+            }
+            return true;
+        }
+
+        private int hash(BPItem.Type type, int start, int end) {
+            int h = type.ordinal();
+            for (int i=start; i< end; i++) {
+                h = 31 * h + childRefs[i];
+            }
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        private void resize() {
+            int[] oldRefs = refs;
+            int[] oldHashes = hashes;
+            int[] oldLengths = lengths;
+            int capacity = Math.max(16, oldRefs.length << 1);
+            refs = new int[capacity];
+            hashes = new int[capacity];
+            lengths = new int[capacity];
+            int mask = capacity - 1;
+            for (int j=0; j< oldRefs.length; j++) {
+                if (oldRefs[j] != 0) {
+                    int i = oldHashes[j] & mask;
+                    while (refs[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    refs[i] = oldRefs[j];
+                    hashes[i] = oldHashes[j];
+                    lengths[i] = oldLengths[j];
                 }
-                break;
+            }
         }
-        return output.toByteArray();
     }
 
-    void writeShort(ByteArrayOutputStream baos, short s) {
-        baos.write((byte) ((s >> 8) & 0xff));
-        baos.write((byte) (s & 0xff));
-    }
+    /**
+     * Options controlling how a plist is encoded. All of the methods return this, so they
+     * can be chained: new BinaryPlistEncoder.Options().uniqueCollections(true)
+     */
+    public static class Options {
+        private boolean uniqueCollections = false;
+        private int maxUniquedDataLength = 4096;
+        private ForkJoinPool pool = null;
+
+        /**
+         * Strings, numbers, dates and data are always uniqued, i.e. equal values are written
+         * once and shared. If this is true, arrays, dicts and sets are too: a collection
+         * whose children are the same objects, in the same order, as those of one already
+         * written is written as a reference to that one. Without this, only the same
+         * collection instance is shared. Defaults to false, as CoreFoundation does.
+         */
+        public Options uniqueCollections(boolean uniqueCollections) {
+            this.uniqueCollections = uniqueCollections;
+            return this;
+        }
 
-    void writeInt(ByteArrayOutputStream baos, int i) {
-        baos.write((byte) ((i >> 24) & 0xff));
-        baos.write((byte) ((i >> 16) & 0xff));
-        baos.write((byte) ((i >> 8) & 0xff));
-        baos.write((byte) (i & 0xff));
-    }
+        /**
+         * Data blobs longer than this are written out separately even if they're equal, to
+         * save hashing and comparing large blocks of memory. Defaults to 4096 bytes.
+         */
+        public Options maxUniquedDataLength(int maxUniquedDataLength) {
+            this.maxUniquedDataLength = maxUniquedDataLength;
+            return this;
+        }
+
+        /**
+         * If true, the objects are written out by several threads at once, using the fork
+         * join pool shared with parallel decoding. Working out the object refs is still done
+         * by one thread. Only worth it for big plists - tens of thousands of objects or
+         * more. The output is exactly the same either way. Defaults to false.
+         */
+        public Options parallel(boolean parallel) {
+            this.pool = parallel ? BinaryPlistDecoder.SharedPool.POOL : null;
+            return this;
+        }
+
+        /**
+         * As parallel(true), but using the given pool.
+         */
+        public Options parallel(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
 
-    void writeLong(ByteArrayOutputStream baos, long l) {
-        baos.write((byte) ((l >> 56) & 0xff));
-        baos.write((byte) ((l >> 48) & 0xff));
-        baos.write((byte) ((l >> 40) & 0xff));
-        baos.write((byte) ((l >> 32) & 0xff));
-        baos.write((byte) ((l >> 24) & 0xff));
-        baos.write((byte) ((l >> 16) & 0xff));
-        baos.write((byte) ((l >> 8) & 0xff));
-        baos.write((byte) (l & 0xff));
+        ForkJoinPool getPool() {
+            return pool;
+        }
+
+        boolean isUniqueCollections() {
+            return uniqueCollections;
+        }
+
+        int getMaxUniquedDataLength() {
+            return maxUniquedDataLength;
+        }
     }
 
     public static class EncodingException extends RuntimeException {
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the contents of a plist from a BinaryPlistReader as a series of events, in the
+ * order a depth-first walk from the root object would find them. No BPItems are created.
+ *
+ * Strings and data are passed as views onto the plist itself, which are reused and so are
+ * only valid until the method returns; call toString() (or copy the bytes) to keep them.
+ * Compare strings with e.g. "name".contentEquals(key), which doesn't allocate.
+ *
+ * The start methods return whether the reader should descend into the collection. If they
+ * return false, its contents are skipped and the matching end method isn't called.
+ */
+public interface BinaryPlistHandler {
+
+    public boolean startDict(int size);
+    public void key(CharSequence key);
+    public void endDict();
+
+    public boolean startArray(int size);
+    public void endArray();
+
+    public boolean startSet(int size);
+    public void endSet();
+
+    public void string(CharSequence value);
+    public void integer(long value);
+    public void real(double value);
+    public void bool(boolean value);
+    public void date(double secondsSince2001);
+    public void data(ByteBuffer value);
+    public void uid(long value);
+    public void nullValue();
+
+}
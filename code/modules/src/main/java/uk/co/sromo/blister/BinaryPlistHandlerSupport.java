@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.nio.ByteBuffer;
+
+/**
+ * No-op implementation of BinaryPlistHandler which descends into every collection -
+ * convenient base class for handlers that are only interested in a few events.
+ */
+public class BinaryPlistHandlerSupport implements BinaryPlistHandler {
+    public boolean startDict(int size) {
+        return true;
+    }
+
+    public void key(CharSequence key) {
+    }
+
+    public void endDict() {
+    }
+
+    public boolean startArray(int size) {
+        return true;
+    }
+
+    public void endArray() {
+    }
+
+    public boolean startSet(int size) {
+        return true;
+    }
+
+    public void endSet() {
+    }
+
+    public void string(CharSequence value) {
+    }
+
+    public void integer(long value) {
+    }
+
+    public void real(double value) {
+    }
+
+    public void bool(boolean value) {
+    }
+
+    public void date(double secondsSince2001) {
+    }
+
+    public void data(ByteBuffer value) {
+    }
+
+    public void uid(long value) {
+    }
+
+    public void nullValue() {
+    }
+}
@@ -16,7 +16,6 @@
 
 package uk.co.sromo.blister;
 
-import java.nio.ByteBuffer;
 import java.util.Formatter;
 import java.util.Locale;
 import java.util.logging.Logger;
@@ -36,10 +35,13 @@ class BinaryPlistHeader {
 
     private final int fileFormatVersion;
 
-    static BinaryPlistHeader build(byte[] data) throws BinaryPlistException {
-        ByteBuffer bytes = ByteBuffer.wrap(data);
-        long first = bytes.getInt();
-        long second = bytes.getInt();
+    /**
+     * Reads the header from the first 8 bytes of the supplied buffer, using absolute reads
+     * so that the buffer's position is left untouched.
+     */
+    static BinaryPlistHeader build(BinaryPlistData bytes) throws BinaryPlistException {
+        long first = bytes.getInt(0);
+        long second = bytes.getInt(4);
         if ((first != MAGIC_1) || (second != MAGIC_2)) {
             log.warning("Magic numbers wrong - were " + formatter.format("%1$2x %2$2x", first, second));
             throw new BinaryPlistException("Bad magic number");
@@ -16,52 +16,98 @@
 
 package uk.co.sromo.blister;
 
-import java.nio.ByteBuffer;
-
 /**
- * Class which will return offsets read from a ByteBuffer. Three implementations are
- * available, depending on whether the ByteBuffer is representing offsets as bytes,
- * shorts or ints.
+ * Class which will return offsets (object refs) read from a plist. There are
+ * implementations for refs stored as bytes, shorts and ints, and a general one for the
+ * other widths up to 8 bytes. Refs too big for an int come back as -1, which is out of
+ * range like any other bad ref.
  *
- * TODO: This presumably advances a pointer in the ByteBuffer when getOffset is called
- * - document this behaviour explicitly.
+ * Offsets are read with absolute reads at the supplied position; callers step through a
+ * list of offsets using getSize().
  */
 abstract class BinaryPlistOffsetReader {
 
+    // these have no state, so every plist with refs of the same width can share one
+    private static final BinaryPlistOffsetReader ONE = new BinaryPlistOffsetReader1();
+    private static final BinaryPlistOffsetReader TWO = new BinaryPlistOffsetReader2();
+    private static final BinaryPlistOffsetReader FOUR = new BinaryPlistOffsetReader4();
+
     static BinaryPlistOffsetReader create(int byteSize) throws BinaryPlistException {
         switch (byteSize) {
             case 1:
-                return new BinaryPlistOffsetReader1();
+                return ONE;
             case 2:
-                return new BinaryPlistOffsetReader2();
+                return TWO;
             case 4:
-                return new BinaryPlistOffsetReader4();
+                return FOUR;
+            case 3:
+            case 5:
+            case 6:
+            case 7:
+            case 8:
+                return new BinaryPlistOffsetReaderN(byteSize);
             default:
                 throw new BinaryPlistException("Can't cope with " + byteSize + " size ints");
         }
     }
 
-    abstract int getOffset(ByteBuffer bytes);
+    abstract int getOffset(BinaryPlistData bytes, long position);
+
+    abstract int getSize();
 
 
     private static class BinaryPlistOffsetReader1 extends BinaryPlistOffsetReader {
         @Override
-        int getOffset(ByteBuffer bytes) {
-            return 0x000000ff & bytes.get();
+        int getOffset(BinaryPlistData bytes, long position) {
+            return 0x000000ff & bytes.get(position);
+        }
+
+        @Override
+        int getSize() {
+            return 1;
         }
     }
 
     private static class BinaryPlistOffsetReader2 extends BinaryPlistOffsetReader {
         @Override
-        int getOffset(ByteBuffer bytes) {
-            return 0x0000ffff & bytes.getShort();
+        int getOffset(BinaryPlistData bytes, long position) {
+            return 0x0000ffff & bytes.getShort(position);
+        }
+
+        @Override
+        int getSize() {
+            return 2;
         }
     }
 
     private static class BinaryPlistOffsetReader4 extends BinaryPlistOffsetReader {
         @Override
-        int getOffset(ByteBuffer bytes) {
-            return (int) bytes.getInt();
+        int getOffset(BinaryPlistData bytes, long position) {
+            return (int) bytes.getInt(position);
+        }
+
+        @Override
+        int getSize() {
+            return 4;
+        }
+    }
+
+    private static class BinaryPlistOffsetReaderN extends BinaryPlistOffsetReader {
+        private final int size;
+
+        BinaryPlistOffsetReaderN(int size) {
+            this.size = size;
+        }
+
+        @Override
+        int getOffset(BinaryPlistData bytes, long position) {
+            long offset = bytes.getSized(position, size);
+            return (offset > Integer.MAX_VALUE) ? -1 : (int) offset;
+        }
+
+        @Override
+        int getSize() {
+            return size;
         }
     }
 }
@@ -19,7 +19,10 @@ package uk.co.sromo.blister;
 import java.util.logging.Logger;
 
 /**
- * Represents the table of object offsets in a binary plist.
+ * Represents the table of object offsets in a binary plist. The offsets are not copied
+ * out of the plist; each lookup reads the relevant entry directly from the underlying
+ * buffer. Offsets are absolute, i.e. relative to the start of the plist, and may be
+ * anything from 1 to 8 bytes wide.
  *
  * TODO: Documentation
  */
@@ -27,44 +30,44 @@ class BinaryPlistOffsetTable {
 
     private final static Logger log = Logger.getLogger(BinaryPlistOffsetTable.class.getSimpleName());
 
-    private final int[] offsets;
-    private final int size;
+    private final BinaryPlistData data;
+    private final long tableOffset;
+    private final int offsetSize;
+    private final long size;
 
-    static BinaryPlistOffsetTable build(byte[] data, int offsetSize) throws BinaryPlistException {
-        if (data.length % offsetSize != 0) {
-            throw new BinaryPlistException("Length of data not commensurate with offset size");
+    static BinaryPlistOffsetTable build(BinaryPlistData data, long tableOffset, long tableLength, int offsetSize) throws BinaryPlistException {
+        if (offsetSize < 1 || offsetSize > 8) {
+            throw new BinaryPlistException("Can't cope with " + offsetSize + " size offsets");
         }
-        final int numberOfOffsets = data.length / offsetSize;
-        int[] offsetArray = new int[numberOfOffsets];
-        byte[] buffer = new byte[offsetSize];
-
-        for (int i=0; i < numberOfOffsets; i++) {
-            System.arraycopy(data, i * offsetSize, buffer, 0, offsetSize);
-            offsetArray[i] = BPInt.from(buffer).getValue() - 8; // offsets relative to start of data
+        if (tableLength % offsetSize != 0) {
+            throw new BinaryPlistException("Length of data not commensurate with offset size");
         }
-        return new BinaryPlistOffsetTable(offsetArray);
+        return new BinaryPlistOffsetTable(data, tableOffset, offsetSize, tableLength / offsetSize);
     }
 
-    BinaryPlistOffsetTable(int[] offsets) {
-        this.offsets = offsets;
-        this.size = offsets.length;
+    private BinaryPlistOffsetTable(BinaryPlistData data, long tableOffset, int offsetSize, long size) {
+        this.data = data;
+        this.tableOffset = tableOffset;
+        this.offsetSize = offsetSize;
+        this.size = size;
     }
 
-    int get(int offset) {
-        return offsets[offset];
+    long get(int index) {
+        return data.getSized(tableOffset + (long) index * offsetSize, offsetSize);
     }
 
-    int get(long offset) {
-        return offsets[(int)offset];
+    long get(long index) {
+        return get((int) index);
     }
 
-    int getSize() {
+    long getSize() {
         return size;
     }
 
     void dump() {
+        if (!BinaryPlist.tracing(log)) return;
         for (int i=0; i< size; i++) {
-            log.fine(String.format("%d: %d", i, offsets[i]));
+            log.fine(String.format("%d: %d", i, get(i)));
         }
     }
 }
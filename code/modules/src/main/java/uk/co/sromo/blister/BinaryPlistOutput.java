@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Growable buffer which the encoder writes a plist into, big-endian throughout. Without a
+ * channel it simply accumulates the whole plist. With a channel, flushIfFull() writes the
+ * buffered bytes out once there are enough of them and then reuses the buffer, so only a
+ * chunk of the plist is ever held in memory.
+ */
+class BinaryPlistOutput {
+
+    private final WritableByteChannel channel;
+    private final int flushThreshold;
+    private byte[] bytes;
+    private int count = 0;
+    private long flushed = 0; // bytes already written to the channel
+
+    BinaryPlistOutput(int initialCapacity) {
+        this(null, initialCapacity);
+    }
+
+    BinaryPlistOutput(WritableByteChannel channel, int flushThreshold) {
+        this.channel = channel;
+        this.flushThreshold = flushThreshold;
+        this.bytes = new byte[Math.max(flushThreshold, 16)];
+    }
+
+    /**
+     * Empties the output so it can be used again, making sure there's room for at least
+     * the given number of bytes.
+     */
+    void clear(int capacity) {
+        count = 0;
+        flushed = 0;
+        if (bytes.length < capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    /**
+     * Number of bytes written so far, including any already flushed to the channel.
+     */
+    long position() {
+        return flushed + count;
+    }
+
+    void write(int b) {
+        ensureCapacity(1);
+        bytes[count++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    void write(byte[] b, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(b, offset, bytes, count, length);
+        count += length;
+    }
+
+    /**
+     * Appends everything written to the other output, which mustn't have a channel.
+     */
+    void write(BinaryPlistOutput other) {
+        write(other.bytes, 0, other.count);
+    }
+
+    void writeShort(int s) {
+        ensureCapacity(2);
+        bytes[count++] = (byte) ((s >> 8) & 0xff);
+        bytes[count++] = (byte) (s & 0xff);
+    }
+
+    void writeInt(int i) {
+        ensureCapacity(4);
+        bytes[count++] = (byte) ((i >> 24) & 0xff);
+        bytes[count++] = (byte) ((i >> 16) & 0xff);
+        bytes[count++] = (byte) ((i >> 8) & 0xff);
+        bytes[count++] = (byte) (i & 0xff);
+    }
+
+    void writeLong(long l) {
+        writeSized(l, 8);
+    }
+
+    /**
+     * Writes the low byte of each char in the string, which must be ASCII.
+     */
+    void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i=0; i< length; i++) {
+            bytes[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes each char in the string as two bytes, big-endian, without a byte order mark.
+     */
+    void writeUtf16(String s) {
+        int length = s.length();
+        ensureCapacity(length << 1);
+        for (int i=0; i< length; i++) {
+            char c = s.charAt(i);
+            bytes[count++] = (byte) (c >> 8);
+            bytes[count++] = (byte) c;
+        }
+    }
+
+    /**
+     * Writes the lowest 'size' bytes of the value, most significant first.
+     */
+    void writeSized(long value, int size) {
+        ensureCapacity(size);
+        for (int shift = (size - 1) << 3; shift >= 0; shift -= 8) {
+            bytes[count++] = (byte) ((value >> shift) & 0xff);
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel if there are enough of them to be worth it.
+     * Does nothing if there's no channel.
+     */
+    void flushIfFull() throws IOException {
+        if (count >= flushThreshold) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all the buffered bytes to the channel. Does nothing if there's no channel.
+     */
+    void flush() throws IOException {
+        if (channel != null && count > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            flushed += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * Returns everything written so far. Only meaningful when there's no channel.
+     */
+    byte[] toByteArray() {
+        return (count == bytes.length) ? bytes : Arrays.copyOf(bytes, count);
+    }
+
+    /**
+     * Whether the array is the output's own buffer, i.e. toByteArray didn't need to copy.
+     */
+    boolean holds(byte[] array) {
+        return array == bytes;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > bytes.length) {
+            if (count + extra < 0) {
+                throw new BinaryPlistEncoder.EncodingException("Plist too large to buffer - encode it to a channel or file instead");
+            }
+            int newLength = Math.max(count + extra, bytes.length << 1);
+            bytes = Arrays.copyOf(bytes, newLength < 0 ? Integer.MAX_VALUE - 8 : newLength);
+        }
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming alternative to BinaryPlist.decode. Rather than building a tree of BPItems, the
+ * reader walks the plist from its root object and reports what it finds to a
+ * BinaryPlistHandler, reading everything in place. Apart from the reader itself, nothing is
+ * allocated unless the handler asks for it, so this is the way to pick a few fields out of
+ * a lot of plists.
+ *
+ * An object referred to from several places is reported each time. Collections nested more
+ * than MAX_DEPTH deep - which is what a plist containing a cycle looks like - are rejected.
+ * A reader isn't thread safe.
+ */
+public class BinaryPlistReader {
+
+    static final int MAX_DEPTH = 512;
+
+    /**
+     * Dicts with more keys than this get a KeyIndex the second time select looks in them.
+     * A single lookup is cheaper as a scan than building the index.
+     */
+    static final int KEY_INDEX_THRESHOLD = 64;
+
+    private final BinaryPlistHeader header;
+    private final BinaryPlistTrailer trailer;
+    private final BinaryPlistData data;
+    private final BinaryPlistOffsetTable offsetTable;
+    private final BinaryPlistOffsetReader offsetReader;
+
+    // views handed to the handler, reused from one event to the next; made by the first read
+    private Text keyText;
+    private Text valueText;
+    private ByteBuffer dataView; // null if the plist isn't in a single buffer
+
+    private KeyIndexTable keyIndexes; // dict ref -> index, null until a wide dict is searched
+    private static final KeyIndex SCANNED = new KeyIndex(0); // marks a dict searched once
+
+    public BinaryPlistReader(byte[] rawData) throws BinaryPlistException {
+        this(ByteBuffer.wrap(rawData));
+    }
+
+    /**
+     * Checks the header, trailer and offset table of the plist held in the remaining bytes
+     * of the buffer. As with BinaryPlist.decode(ByteBuffer), nothing is copied and the
+     * buffer's position and limit are left alone, but its contents mustn't change while
+     * the reader is in use.
+     */
+    public BinaryPlistReader(ByteBuffer buffer) throws BinaryPlistException {
+        this(BinaryPlistData.wrap(buffer));
+    }
+
+    /**
+     * Reads the plist in the given file, which is memory-mapped, in segments if it's over
+     * 2GB.
+     */
+    public BinaryPlistReader(Path path) throws BinaryPlistException, IOException {
+        this(map(path));
+    }
+
+    BinaryPlistReader(BinaryPlistData data) throws BinaryPlistException {
+        this.data = data;
+        long length = data.size();
+        if (length < 40) {
+            throw new BinaryPlistException("Byte array not long enough");
+        }
+
+        header = BinaryPlistHeader.build(data);
+        trailer = BinaryPlistTrailer.build(data, length - 32);
+
+        long offset = trailer.getOffsetTableOffset();
+        if (offset < 8 || offset > length - 32) {
+            throw new BinaryPlistException("Offset table offset " + offset + " is outside the plist");
+        }
+
+        offsetTable = BinaryPlistOffsetTable.build(data, offset, length - 32 - offset, trailer.getOffsetIntSize());
+
+        long numObjects = trailer.getNumObjects();
+        if (numObjects < 1 || numObjects > offsetTable.getSize()) {
+            throw new BinaryPlistException("Plist claims " + numObjects + " objects, but offset table has room for " + offsetTable.getSize());
+        }
+        if (numObjects > Integer.MAX_VALUE - 8) {
+            throw new BinaryPlistException("Plist has too many objects - " + numObjects);
+        }
+        if (trailer.getTopObject() < 0 || trailer.getTopObject() >= numObjects) {
+            throw new BinaryPlistException("Top object " + trailer.getTopObject() + " out of range");
+        }
+
+        offsetReader = BinaryPlistOffsetReader.create(trailer.getObjectRefSize());
+    }
+
+    /**
+     * Maps the file, which can be closed straight away since mappings outlive it.
+     */
+    static BinaryPlistData map(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return BinaryPlistData.map(channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Walks the whole plist, starting from the root object. May be called more than once.
+     */
+    public void read(BinaryPlistHandler handler) throws BinaryPlistException {
+        if (keyText == null) {
+            keyText = new Text(data);
+            valueText = new Text(data);
+            dataView = (data.buffer() != null) ? data.buffer().asReadOnlyBuffer() : null;
+        }
+        try {
+            readObject((int) trailer.getTopObject(), handler, 0);
+        } catch (IndexOutOfBoundsException e) {
+            throw new BinaryPlistException("Plist refers to data beyond its end");
+        }
+    }
+
+    /**
+     * Returns the object at the end of the path, or null if there's nothing there - if a key
+     * is missing, an index is out of range, or the path goes through something which isn't
+     * a dict (for a key) or an array (for an index). Only the object at the end is decoded.
+     * The second search of a dict with more than KEY_INDEX_THRESHOLD keys builds an index of
+     * them, which the reader keeps, so later lookups in that dict take constant time.
+     */
+    public BPItem select(PlistPath path) throws BinaryPlistException {
+        try {
+            int ref = (int) trailer.getTopObject();
+            for (int i=0; i< path.size() && ref >= 0; i++) {
+                String key = path.getKey(i);
+                ref = (key != null) ? valueForKey(ref, key) : valueAtIndex(ref, path.getIndex(i));
+            }
+            return (ref < 0) ? null : decoder(new BinaryPlistDecoder.Options()).decodeObject(ref);
+        } catch (IndexOutOfBoundsException e) {
+            throw new BinaryPlistException("Plist refers to data beyond its end");
+        }
+    }
+
+    /**
+     * Makes a decoder for the same plist, which BinaryPlist.decode uses to build the tree.
+     */
+    BinaryPlistDecoder decoder(BinaryPlistDecoder.Options options) {
+        return new BinaryPlistDecoder(header, trailer, data, offsetTable, offsetReader, options);
+    }
+
+    /**
+     * Points a reusable decoder at this plist.
+     */
+    void start(BinaryPlistDecoder decoder) {
+        decoder.start(header, trailer, data, offsetTable, offsetReader);
+    }
+
+    private void readObject(int ref, BinaryPlistHandler handler, int depth) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        short next = (short) (0xff & data.get(offset));
+        switch (next) {
+            case BinaryPlist.NULL:
+            case BinaryPlist.FILL:
+                handler.nullValue();
+                return;
+            case BinaryPlist.BOOL_FALSE:
+                handler.bool(false);
+                return;
+            case BinaryPlist.BOOL_TRUE:
+                handler.bool(true);
+                return;
+            case BinaryPlist.DATE:
+                handler.date(data.getDouble(offset + 1));
+                return;
+        }
+
+        final int littleNibble = next & 0x000f;
+        final int bigNibble = next & 0x00f0;
+        long position = offset + 1;
+        switch (bigNibble) {
+            case BinaryPlist.INT:
+                handler.integer(readInteger(position, 1 << littleNibble));
+                return;
+            case BinaryPlist.REAL:
+                handler.real(littleNibble == 2 ? data.getFloat(position) : data.getDouble(position));
+                return;
+            case BinaryPlist.UID:
+                handler.uid(readInteger(position, littleNibble + 1));
+                return;
+        }
+
+        int count = countAt(offset);
+        position = contentsAt(offset);
+        switch (bigNibble) {
+            case BinaryPlist.DATA:
+                handler.data(dataView(position, count));
+                break;
+            case BinaryPlist.STRING_ASCII:
+                handler.string(valueText.set(position, count, false));
+                break;
+            case BinaryPlist.STRING_UNICODE:
+                handler.string(valueText.set(position, count, true));
+                break;
+            case BinaryPlist.ARRAY:
+                checkDepth(depth);
+                if (handler.startArray(count)) {
+                    readObjects(position, count, handler, depth);
+                    handler.endArray();
+                }
+                break;
+            case BinaryPlist.SET:
+                checkDepth(depth);
+                if (handler.startSet(count)) {
+                    readObjects(position, count, handler, depth);
+                    handler.endSet();
+                }
+                break;
+            case BinaryPlist.DICT:
+                checkDepth(depth);
+                if (handler.startDict(count)) {
+                    int size = offsetReader.getSize();
+                    long valuePosition = position + (long) count * size;
+                    for (int i=0; i< count; i++) {
+                        handler.key(readKey(offsetReader.getOffset(data, position)));
+                        readObject(offsetReader.getOffset(data, valuePosition), handler, depth + 1);
+                        position += size;
+                        valuePosition += size;
+                    }
+                    handler.endDict();
+                }
+                break;
+            default:
+                handler.nullValue();
+                break;
+        }
+    }
+
+    /**
+     * Returns the ref of the value for the key in the dict with the given ref, or -1 if it
+     * isn't a dict or hasn't got the key. Keys are compared in place, without decoding them;
+     * in a wide dict, only the ones whose hash matches are compared.
+     */
+    private int valueForKey(int ref, String key) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        if ((data.get(offset) & 0xf0) != BinaryPlist.DICT) {
+            return -1;
+        }
+        int count = countAt(offset);
+        long position = contentsAt(offset);
+        int size = offsetReader.getSize();
+        KeyIndex index = (count > KEY_INDEX_THRESHOLD) ? keyIndexFor(ref, position, count) : null;
+        if (index != null) {
+            int hash = key.hashCode();
+            int mask = index.slots.length - 1;
+            for (int j = KeyIndex.spread(hash) & mask; index.slots[j] != 0; j = (j + 1) & mask) {
+                int i = index.slots[j] - 1;
+                if (index.hashes[j] == hash && keyMatches(offsetReader.getOffset(data, position + (long) i * size), key)) {
+                    return offsetReader.getOffset(data, position + (long) (count + i) * size);
+                }
+            }
+            return -1;
+        }
+        for (int i=0; i< count; i++) {
+            if (keyMatches(offsetReader.getOffset(data, position + (long) i * size), key)) {
+                return offsetReader.getOffset(data, position + (long) (count + i) * size);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index for the dict, building it if this is the second time it's been
+     * searched, or null if it's the first.
+     */
+    private KeyIndex keyIndexFor(int ref, long position, int count) throws BinaryPlistException {
+        if (keyIndexes == null) {
+            keyIndexes = new KeyIndexTable();
+        }
+        KeyIndex index = keyIndexes.get(ref);
+        if (index == null) {
+            keyIndexes.put(ref, SCANNED);
+            return null;
+        }
+        if (index == SCANNED) {
+            index = new KeyIndex(count);
+            int size = offsetReader.getSize();
+            for (int i=0; i< count; i++) {
+                index.add(hashKey(offsetReader.getOffset(data, position + (long) i * size)), i);
+            }
+            keyIndexes.put(ref, index);
+        }
+        return index;
+    }
+
+    /**
+     * Hashes the key with the given ref as String.hashCode would hash the decoded key.
+     */
+    private int hashKey(int ref) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        int type = data.get(offset) & 0xf0;
+        checkKey(ref, type);
+        int length = countAt(offset);
+        long position = contentsAt(offset);
+        int hash = 0;
+        if (type == BinaryPlist.STRING_UNICODE) {
+            for (int i=0; i< length; i++) {
+                hash = 31 * hash + data.getChar(position + (i << 1));
+            }
+        } else {
+            for (int i=0; i< length; i++) {
+                byte b = data.get(position + i);
+                hash = 31 * hash + ((b >= 0) ? (char) b : '\ufffd');
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the ref of the given item in the array with the given ref, or -1 if it isn't
+     * an array or the index is out of range.
+     */
+    private int valueAtIndex(int ref, int index) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        if ((data.get(offset) & 0xf0) != BinaryPlist.ARRAY || index >= countAt(offset)) {
+            return -1;
+        }
+        return offsetReader.getOffset(data, contentsAt(offset) + (long) index * offsetReader.getSize());
+    }
+
+    private boolean keyMatches(int ref, String key) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        int type = data.get(offset) & 0xf0;
+        checkKey(ref, type);
+        int length = countAt(offset);
+        if (length != key.length()) {
+            return false;
+        }
+        long position = contentsAt(offset);
+        if (type == BinaryPlist.STRING_UNICODE) {
+            for (int i=0; i< length; i++) {
+                if (data.getChar(position + (i << 1)) != key.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i=0; i< length; i++) {
+                byte b = data.get(position + i);
+                if (((b >= 0) ? (char) b : '\ufffd') != key.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void readObjects(long position, int count, BinaryPlistHandler handler, int depth) throws BinaryPlistException {
+        int size = offsetReader.getSize();
+        for (int i=0; i< count; i++) {
+            readObject(offsetReader.getOffset(data, position), handler, depth + 1);
+            position += size;
+        }
+    }
+
+    private CharSequence readKey(int ref) throws BinaryPlistException {
+        long offset = offsetOf(ref);
+        int type = data.get(offset) & 0xf0;
+        checkKey(ref, type);
+        return keyText.set(contentsAt(offset), countAt(offset), type == BinaryPlist.STRING_UNICODE);
+    }
+
+    private void checkKey(int ref, int type) throws BinaryPlistException {
+        if (type != BinaryPlist.STRING_ASCII && type != BinaryPlist.STRING_UNICODE) {
+            throw new BinaryPlistException("Dict key at object " + ref + " isn't a string");
+        }
+    }
+
+    /**
+     * The number of items, chars or bytes in the object at the given offset, taken from its
+     * marker or from the int after that.
+     */
+    private int countAt(long offset) throws BinaryPlistException {
+        int count = data.get(offset) & 0x0f;
+        return (count == 0x0f) ? readLength(offset + 1) : count;
+    }
+
+    /**
+     * Where the contents of the object at the given offset start, after its marker and any
+     * length int.
+     */
+    private long contentsAt(long offset) {
+        long position = offset + 1;
+        if ((data.get(offset) & 0x0f) == 0x0f) {
+            position += 1 + (1 << (data.get(position) & 0x0f));
+        }
+        return position;
+    }
+
+    private long offsetOf(int ref) throws BinaryPlistException {
+        if (ref < 0 || ref >= trailer.getNumObjects()) {
+            throw new BinaryPlistException("Object ref " + ref + " out of range - plist has " + trailer.getNumObjects() + " objects");
+        }
+        return offsetTable.get(ref);
+    }
+
+    private void checkDepth(int depth) throws BinaryPlistException {
+        if (depth >= MAX_DEPTH) {
+            throw new BinaryPlistException("Collections nested more than " + MAX_DEPTH + " deep - the plist may contain a cycle");
+        }
+    }
+
+    /**
+     * Reads an int of the given size with the same meaning as BPInt.read, i.e. sizes below
+     * 8 bytes are unsigned, and a 16 byte int gives its low 8 bytes. Also used for UIDs.
+     */
+    private long readInteger(long position, int size) {
+        return (size > 8) ? data.getLong(position + size - 8) : data.getSized(position, size);
+    }
+
+    /**
+     * Positions the reused view on the given bytes, or makes a new one if there's no
+     * single buffer to view.
+     */
+    private ByteBuffer dataView(long position, int length) {
+        if (dataView == null) {
+            return data.view(position, length);
+        }
+        dataView.clear();
+        dataView.position((int) position);
+        dataView.limit((int) position + length);
+        return dataView;
+    }
+
+    /**
+     * Reads the int at the given position, which gives the size of the object before it.
+     */
+    private int readLength(long position) throws BinaryPlistException {
+        int next = 0xff & data.get(position);
+        if ((next & 0xf0) != BinaryPlist.INT) {
+            throw new BinaryPlistException("Asked to read an int, but next thing in stream wasn't one");
+        }
+        int size = 1 << (next & 0x0f);
+        if (size > 8) {
+            throw new BinaryPlistException("Can't read a " + size + " byte length");
+        }
+        long value = readInteger(position + 1, size);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new BinaryPlistException("Length " + value + " out of range");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Hash table from the keys of a wide dict to their positions in it, so that looking a
+     * key up only compares it with the keys which have the same hash. Keys are hashed as
+     * Strings would be, so a lookup can use the String's cached hash. Open addressing with
+     * linear probing; a key which appears twice keeps its first position, as with a scan.
+     */
+    private static class KeyIndex {
+        final int[] hashes;
+        final int[] slots; // position of the key in the dict plus one, or 0 if empty
+
+        KeyIndex(int count) {
+            int capacity = 16;
+            while (capacity < count * 2) {
+                capacity <<= 1;
+            }
+            hashes = new int[capacity];
+            slots = new int[capacity];
+        }
+
+        void add(int hash, int position) {
+            int mask = slots.length - 1;
+            int j = spread(hash) & mask;
+            while (slots[j] != 0) {
+                j = (j + 1) & mask;
+            }
+            hashes[j] = hash;
+            slots[j] = position + 1;
+        }
+
+        static int spread(int hash) {
+            hash *= 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Map from dict refs to their KeyIndexes, keyed by int so that looking one up doesn't
+     * box the ref. Open addressing with linear probing, like KeyIndex; entries are never
+     * removed.
+     */
+    private static class KeyIndexTable {
+        private int[] refs = new int[16];
+        private KeyIndex[] indexes = new KeyIndex[16]; // null where the slot is empty
+        private int size = 0;
+
+        KeyIndex get(int ref) {
+            int mask = refs.length - 1;
+            for (int j = KeyIndex.spread(ref) & mask; indexes[j] != null; j = (j + 1) & mask) {
+                if (refs[j] == ref) {
+                    return indexes[j];
+                }
+            }
+            return null;
+        }
+
+        void put(int ref, KeyIndex index) {
+            int mask = refs.length - 1;
+            int j = KeyIndex.spread(ref) & mask;
+            while (indexes[j] != null) {
+                if (refs[j] == ref) {
+                    indexes[j] = index;
+                    return;
+                }
+                j = (j + 1) & mask;
+            }
+            refs[j] = ref;
+            indexes[j] = index;
+            if (++size * 2 > refs.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            int[] oldRefs = refs;
+            KeyIndex[] oldIndexes = indexes;
+            refs = new int[oldRefs.length << 1];
+            indexes = new KeyIndex[oldRefs.length << 1];
+            int mask = refs.length - 1;
+            for (int i=0; i< oldRefs.length; i++) {
+                if (oldIndexes[i] != null) {
+                    int j = KeyIndex.spread(oldRefs[i]) & mask;
+                    while (indexes[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    refs[j] = oldRefs[i];
+                    indexes[j] = oldIndexes[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * A string in the plist, read a char at a time straight from the buffer. As when
+     * decoding, bytes outside the ASCII range in an ASCII string become the replacement
+     * character.
+     */
+    private static class Text implements CharSequence {
+        private final BinaryPlistData data;
+        private long position;
+        private int length;
+        private boolean unicode;
+
+        Text(BinaryPlistData data) {
+            this.data = data;
+        }
+
+        Text set(long position, int length, boolean unicode) {
+            this.position = position;
+            this.length = length;
+            this.unicode = unicode;
+            return this;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of range for string of length " + length);
+            }
+            if (unicode) {
+                return data.getChar(position + (index << 1));
+            }
+            byte b = data.get(position + index);
+            return (b >= 0) ? (char) b : '\ufffd';
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i=0; i< length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.util.Arrays;
+
+/**
+ * Table of the object refs handed out by the encoder.
+ *
+ * Following CoreFoundation, strings, numbers, dates, UIDs and data are uniqued, i.e. looked
+ * up by value, so that equal values share a single object in the plist. Data blobs longer
+ * than a given limit are not, to save hashing and comparing them. Everything else - including
+ * collections, whose hashCode and equals recurse over the whole subtree - is looked up by
+ * identity. The table uses open addressing with linear probing, keeps each entry's hash so
+ * it's only ever computed once, and holds refs in an int array rather than as boxed Integers.
+ */
+class BinaryPlistRefTable {
+
+    private BPItem[] keys;
+    private int[] hashes;
+    private int[] refs;
+    private int size = 0;
+    private final int maxUniquedDataLength;
+
+    BinaryPlistRefTable(int expectedSize, int maxUniquedDataLength) {
+        this.maxUniquedDataLength = maxUniquedDataLength;
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the ref for the item, or -1 if it hasn't got one.
+     */
+    int get(BPItem item) {
+        int hash = hash(item);
+        int mask = keys.length - 1;
+        for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && matches(keys[i], item)) {
+                return refs[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives the item the supplied ref, unless it already has one, in which case that is
+     * returned instead and the table is left unchanged. Returns -1 if the ref was added.
+     */
+    int putIfAbsent(BPItem item, int ref) {
+        int hash = hash(item);
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (hashes[i] == hash && matches(keys[i], item)) {
+                return refs[i];
+            }
+        }
+        keys[i] = item;
+        hashes[i] = hash;
+        refs[i] = ref;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the table, keeping its capacity unless that's more than maxCapacity.
+     */
+    void clear(int maxCapacity) {
+        if (keys.length > maxCapacity) {
+            allocate(16);
+        } else if (size > 0) {
+            Arrays.fill(keys, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Whether the item is looked up by value rather than by identity.
+     */
+    private boolean isUniqued(BPItem item) {
+        switch (item.getType()) {
+            case String:
+            case Int:
+            case Real:
+            case Date:
+            case Uid:
+                return true;
+            case Data:
+                return ((BPData) item).getData().length <= maxUniquedDataLength;
+            default:
+                return false;
+        }
+    }
+
+    private int hash(BPItem item) {
+        int h;
+        if (!isUniqued(item)) {
+            h = System.identityHashCode(item);
+        } else if (item.getType() == BPItem.Type.Data) {
+            h = Arrays.hashCode(((BPData) item).getData());
+        } else if (item.getType() == BPItem.Type.Uid) {
+            h = Arrays.hashCode(((BPUid) item).getValue());
+        } else {
+            h = item.hashCode();
+        }
+        // spread the bits, since the table index is taken from the low ones
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(BPItem key, BPItem item) {
+        if (key == item) {
+            return true;
+        } else if (!isUniqued(item) || key.getType() != item.getType()) {
+            return false;
+        } else if (item.getType() == BPItem.Type.Data) {
+            return Arrays.equals(((BPData) key).getData(), ((BPData) item).getData());
+        } else if (item.getType() == BPItem.Type.Uid) {
+            return Arrays.equals(((BPUid) key).getValue(), ((BPUid) item).getValue());
+        } else {
+            return item.equals(key);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new BPItem[capacity];
+        hashes = new int[capacity];
+        refs = new int[capacity];
+    }
+
+    private void resize() {
+        BPItem[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldRefs = refs;
+        allocate(oldKeys.length << 1);
+        int mask = keys.length - 1;
+        for (int j=0; j< oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                refs[i] = oldRefs[j];
+            }
+        }
+    }
+}
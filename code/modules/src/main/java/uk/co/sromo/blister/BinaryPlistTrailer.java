@@ -16,8 +16,6 @@
 
 package uk.co.sromo.blister;
 
-import java.nio.ByteBuffer;
-
 /**
  * Represents the trailer of a binary plist which contains important information about
  * what int sizes have been used to represent objects in the plist, how many objects have
@@ -39,16 +37,17 @@ class BinaryPlistTrailer {
      * uint64_t	_topObject;
      * uint64_t	_offsetTableOffset;
      * } CFBinaryPlistTrailer;
+     *
+     * The trailer is read with absolute reads starting at the supplied position, which
+     * should be 32 bytes before the end of the plist.
      */
-    static BinaryPlistTrailer build(byte[] data) {
-        ByteBuffer bytes = ByteBuffer.wrap(data);
-        bytes.position(5);
-        short _sortVersion = bytes.get();
-        short _offsetIntSize = bytes.get();
-        short _objectRefSize = bytes.get();
-        long _numObjects = bytes.getLong();
-        long _topObject = bytes.getLong();
-        long _offsetTableOffset = bytes.getLong();
+    static BinaryPlistTrailer build(BinaryPlistData bytes, long position) {
+        short _sortVersion = bytes.get(position + 5);
+        short _offsetIntSize = bytes.get(position + 6);
+        short _objectRefSize = bytes.get(position + 7);
+        long _numObjects = bytes.getLong(position + 8);
+        long _topObject = bytes.getLong(position + 16);
+        long _offsetTableOffset = bytes.getLong(position + 24);
         return new BinaryPlistTrailer(_sortVersion, _offsetIntSize, _objectRefSize, _numObjects, _topObject, _offsetTableOffset);
     }
 
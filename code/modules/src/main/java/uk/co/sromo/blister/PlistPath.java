@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled path to one object in a plist, e.g. "root.devices[3].serial" - the value for
+ * the key "serial" in the dict which is item 3 of the array under the key "devices" in the
+ * root dict. The leading "root" is optional, and stands for the top object, so a root dict
+ * with a key actually called "root" needs "root.root". A backslash escapes the next char,
+ * for keys containing '.', '[' or '\'.
+ *
+ * Selecting only reads the collections along the path (and only the keys of the dicts),
+ * then decodes the object at the end of it, so it costs about the same however big the
+ * rest of the plist is. Paths are immutable, so one can be compiled once and shared.
+ */
+public class PlistPath {
+
+    private final String path;
+    private final String[] keys; // null where the step is an array index
+    private final int[] indexes;
+
+    private PlistPath(String path, String[] keys, int[] indexes) {
+        this.path = path;
+        this.keys = keys;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Parses the path, throwing an IllegalArgumentException if it's malformed.
+     */
+    public static PlistPath compile(String path) {
+        List<String> keys = new ArrayList<String>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        int length = path.length();
+        int i = 0;
+        boolean first = true;
+        if (path.startsWith("root") && (length == 4 || path.charAt(4) == '.' || path.charAt(4) == '[')) {
+            i = 4;
+            first = false;
+        }
+        while (i < length) {
+            char c = path.charAt(i);
+            if (c == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed [ at " + i + " in path " + path);
+                }
+                keys.add(null);
+                indexes.add(parseIndex(path, i + 1, end));
+                i = end + 1;
+            } else if (c == '.' || first) {
+                if (c == '.') {
+                    i++;
+                }
+                StringBuilder key = new StringBuilder();
+                for (; i < length && path.charAt(i) != '.' && path.charAt(i) != '['; i++) {
+                    if (path.charAt(i) == '\\') {
+                        if (++i == length) {
+                            throw new IllegalArgumentException("Path " + path + " ends with an escape");
+                        }
+                    }
+                    key.append(path.charAt(i));
+                }
+                keys.add(key.toString());
+                indexes.add(-1);
+            } else {
+                throw new IllegalArgumentException("Expected . or [ at " + i + " in path " + path);
+            }
+            first = false;
+        }
+
+        int[] indexArray = new int[indexes.size()];
+        for (int j=0; j< indexArray.length; j++) {
+            indexArray[j] = indexes.get(j);
+        }
+        return new PlistPath(path, keys.toArray(new String[keys.size()]), indexArray);
+    }
+
+    private static int parseIndex(String path, int from, int to) {
+        if (from == to) {
+            throw new IllegalArgumentException("Empty [] at " + from + " in path " + path);
+        }
+        long index = 0;
+        for (int i=from; i< to; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Bad index " + path.substring(from, to) + " in path " + path);
+            }
+            index = index * 10 + (c - '0');
+            if (index > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Index " + path.substring(from, to) + " too large in path " + path);
+            }
+        }
+        return (int) index;
+    }
+
+    /**
+     * Returns the object at the end of the path in the plist held in the remaining bytes of
+     * the buffer, or null if there's nothing there. To pick several paths out of the same
+     * plist, use a BinaryPlistReader's select method instead, which saves checking the plist
+     * each time.
+     */
+    public BPItem select(ByteBuffer buffer) throws BinaryPlistException {
+        return new BinaryPlistReader(buffer).select(this);
+    }
+
+    public BPItem select(byte[] rawData) throws BinaryPlistException {
+        return select(ByteBuffer.wrap(rawData));
+    }
+
+    /**
+     * Number of steps in the path - zero for the root object itself.
+     */
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * The key for the given step, or null if the step is an array index.
+     */
+    String getKey(int step) {
+        return keys[step];
+    }
+
+    int getIndex(int step) {
+        return indexes[step];
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
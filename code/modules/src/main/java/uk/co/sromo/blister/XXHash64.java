@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Daniel Rendall
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.sromo.blister;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * xxHash64 (see https://github.com/Cyan4973/xxHash), a fast non-cryptographic 64 bit
+ * hash, which BinaryPlistCache uses to look plists up by their content. Reads 8 bytes at
+ * a time, so hashing a plist costs much less than decoding it.
+ */
+final class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XXHash64() {
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer, leaving its position alone.
+     */
+    static long hash(ByteBuffer buffer, long seed) {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = in.position();
+        int end = in.limit();
+        long h;
+        if (end - position >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, in.getLong(position));
+                v2 = round(v2, in.getLong(position + 8));
+                v3 = round(v3, in.getLong(position + 16));
+                v4 = round(v4, in.getLong(position + 24));
+                position += 32;
+            } while (end - position >= 32);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += end - in.position();
+
+        for (; end - position >= 8; position += 8) {
+            h ^= round(0, in.getLong(position));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (end - position >= 4) {
+            h ^= (in.getInt(position) & 0xffffffffL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            h ^= (in.get(position) & 0xff) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long accumulator, long lane) {
+        accumulator += lane * PRIME2;
+        return Long.rotateLeft(accumulator, 31) * PRIME1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * PRIME1 + PRIME4;
+    }
+}
@@ -22,9 +22,28 @@ import org.junit.Ignore;
 import org.junit.Test;
 import uk.co.sromo.blister.util.DumpVisitor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -73,6 +92,22 @@ public class TestBPItems {
         Assert.assertEquals("String wasn't Unicode", BPString.EncodingType.UTF16, unicode3.getEncodingType());
     }
 
+    @Test
+    public void TestBPStringTypeIdentificationAtAsciiBoundary() {
+        Assert.assertEquals(BPString.EncodingType.ASCII, BPString.get("abc\u007f").getEncodingType());
+        Assert.assertEquals(BPString.EncodingType.UTF16, BPString.get("abc\u0080").getEncodingType());
+    }
+
+    @Test
+    public void TestUnicodeStringEncodedWithoutPadding() throws BinaryPlistException {
+        BPArray array = new BPArray().with(UNICODE_STRING_2);
+        byte[] bytes = BinaryPlist.encode(array);
+        // header, array marker and ref, string marker and chars, offset table, trailer
+        Assert.assertEquals(8 + 2 + 1 + 2 * UNICODE_STRING_2.length() + 2 + 32, bytes.length);
+        BPArray newArray = (BPArray) BinaryPlist.decode(bytes);
+        Assert.assertEquals(UNICODE_STRING_2, newArray.get(0).toString());
+    }
+
     @Test
     public void TestReadingBinaryUnicode() throws IOException, BinaryPlistException {
         InputStream stream = TestBPItems.class.getResourceAsStream("/BinaryUnicode.plist");
@@ -86,6 +121,38 @@ public class TestBPItems {
         Assert.assertEquals("New unicode lookup failed", UNICODE_STRING_1, newDict.get(UNICODE_STRING_2, "FAIL"));
     }
 
+    @Test
+    public void TestReadingFromDirectByteBuffer() throws IOException, BinaryPlistException {
+        InputStream stream = TestBPItems.class.getResourceAsStream("/BinaryUnicode.plist");
+        byte[] bytes = IOUtils.toByteArray(stream);
+        // put some junk either side of the plist to check only the remaining bytes are used
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 20);
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.position(10);
+        buffer.limit(10 + bytes.length);
+        BPItem root = BinaryPlist.decode(buffer);
+        Assert.assertEquals("Buffer position moved", 10, buffer.position());
+        Assert.assertEquals("Not a dictionary", BPItem.Type.Dict, root.getType());
+
+        BPDict newDict = (BPDict) root;
+
+        Assert.assertEquals("New ascii lookup failed", ASCII_STRING_1, newDict.get(ASCII_STRING_2, "FAIL"));
+        Assert.assertEquals("New unicode lookup failed", UNICODE_STRING_1, newDict.get(UNICODE_STRING_2, "FAIL"));
+    }
+
+    @Test
+    public void TestReadingMappedFile() throws IOException, BinaryPlistException, URISyntaxException {
+        Path path = new File(TestBPItems.class.getResource("/BinaryUnicode.plist").toURI()).toPath();
+        BPItem root = BinaryPlist.decode(path);
+        Assert.assertEquals("Not a dictionary", BPItem.Type.Dict, root.getType());
+
+        BPDict newDict = (BPDict) root;
+
+        Assert.assertEquals("New ascii lookup failed", ASCII_STRING_1, newDict.get(ASCII_STRING_2, "FAIL"));
+        Assert.assertEquals("New unicode lookup failed", UNICODE_STRING_1, newDict.get(UNICODE_STRING_2, "FAIL"));
+    }
+
     @Test
     public void TestPrimitiveTypesInDictionary() throws BinaryPlistException {
         BPDict dict = new BPDict()
@@ -138,6 +205,929 @@ public class TestBPItems {
         Assert.assertEquals(array1.get(2), array2.get(2));
     }
 
+    @Test
+    public void TestLazyDecoding() throws BinaryPlistException {
+        BPDict dict = new BPDict()
+                .with("key1", "value1")
+                .with("key2", new BPArray()
+                    .with("another value")
+                    .with(new BPDict().with("inner", 56)))
+                .with("key3", new BPDict().with("unused", true));
+        byte[] bytes = BinaryPlist.encode(dict);
+
+        BPItem root = BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().lazy(true));
+        Assert.assertEquals("Not a dictionary", BPItem.Type.Dict, root.getType());
+        BPDict newDict = (BPDict) root;
+        Assert.assertFalse("Root expanded too early", newDict.isExpanded());
+
+        Assert.assertEquals("value1", newDict.get("key1", "FAIL"));
+        Assert.assertTrue(newDict.isExpanded());
+        BPArray array = (BPArray) newDict.get("key2");
+        BPDict unused = (BPDict) newDict.get("key3");
+        Assert.assertFalse("Array expanded too early", array.isExpanded());
+        Assert.assertEquals(2, array.size());
+        BPDict inner = (BPDict) array.get(1);
+        Assert.assertEquals(56, inner.get("inner", -1));
+        Assert.assertFalse("Untouched dict was expanded", unused.isExpanded());
+
+        Assert.assertEquals(dict, newDict);
+        Assert.assertEquals(dict, BinaryPlist.decode(BinaryPlist.encode(newDict)));
+    }
+
+    @Test
+    public void TestSharedObjectsDecodeToSameInstance() throws BinaryPlistException {
+        BPArray array = new BPArray()
+                .with("repeated")
+                .with(new BPDict().with("key", "repeated"))
+                .with("repeated");
+        BPArray newArray = (BPArray) BinaryPlist.decode(BinaryPlist.encode(array));
+        Assert.assertEquals(array, newArray);
+        Assert.assertSame(newArray.get(0), newArray.get(2));
+        Assert.assertSame(newArray.get(0), ((BPDict) newArray.get(1)).get("key"));
+    }
+
+    @Test
+    public void TestSharedCollectionsEncodedOnce() throws BinaryPlistException {
+        BPDict shared = new BPDict().with("key", "value");
+        BPArray array = new BPArray()
+                .with(shared)
+                .with(new BPDict().with("key", "value"))
+                .with(shared);
+        BPArray newArray = (BPArray) BinaryPlist.decode(BinaryPlist.encode(array));
+        Assert.assertEquals(array, newArray);
+        Assert.assertSame(newArray.get(0), newArray.get(2));
+        // collections are only shared if they're the same instance
+        Assert.assertNotSame(newArray.get(0), newArray.get(1));
+    }
+
+    @Test
+    public void TestDictMapContract() throws BinaryPlistException {
+        BPDict dict = new BPDict();
+        Map<BPString, BPItem> expected = new LinkedHashMap<BPString, BPItem>();
+        for (int i=0; i< 100; i++) {
+            dict.with("key" + i, i);
+            expected.put(BPString.get("key" + i), BPInt.get(i));
+        }
+        Assert.assertEquals(expected, dict);
+        Assert.assertEquals(dict, expected);
+        Assert.assertEquals(expected.hashCode(), dict.hashCode());
+        Assert.assertEquals(new ArrayList<BPString>(expected.keySet()), new ArrayList<BPString>(dict.keySet()));
+
+        Assert.assertEquals(BPInt.get(5), dict.put(BPString.get("key5"), BPInt.get(-5)));
+        Assert.assertEquals(-5, dict.get("key5", 0));
+        Assert.assertEquals(BPInt.get(7), dict.remove("key7"));
+        Assert.assertFalse(dict.containsKey("key7"));
+        Assert.assertEquals(42, dict.get("missing", 42));
+
+        Iterator<BPString> keys = dict.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().getValue().endsWith("0")) {
+                keys.remove();
+            }
+        }
+        Assert.assertEquals(89, dict.size());
+        Assert.assertFalse(dict.containsKey("key10"));
+        Assert.assertEquals(99, dict.get("key99", 0));
+        Assert.assertEquals("key1", dict.keySet().iterator().next().getValue());
+
+        for (Map.Entry<BPString, BPItem> entry : dict.entrySet()) {
+            entry.setValue(BPBoolean.TRUE);
+        }
+        Assert.assertTrue(dict.get("key33", false));
+        dict.clear();
+        Assert.assertTrue(dict.isEmpty());
+        Assert.assertNull(dict.get("key33"));
+    }
+
+    @Test
+    public void TestDictsAroundIndexThreshold() throws BinaryPlistException {
+        int threshold = BPDictEntries.INDEX_THRESHOLD;
+        for (int size = threshold - 1; size <= threshold + 2; size++) {
+            BPDict dict = new BPDict();
+            Map<BPString, BPItem> expected = new LinkedHashMap<BPString, BPItem>();
+            for (int i=0; i< size; i++) {
+                dict.with("key" + i, i);
+                expected.put(BPString.get("key" + i), BPInt.get(i));
+            }
+            assertSameEntries(expected, dict);
+            // decoded dicts are sized exactly, so they start either side of the threshold too
+            assertSameEntries(expected, (BPDict) BinaryPlist.decode(BinaryPlist.encode(dict)));
+
+            // grow past the threshold, then shrink back below it
+            for (int i=size; i< threshold + 4; i++) {
+                dict.with("key" + i, i);
+                expected.put(BPString.get("key" + i), BPInt.get(i));
+                assertSameEntries(expected, dict);
+            }
+            dict.remove("key0");
+            expected.remove(BPString.get("key0"));
+            assertSameEntries(expected, dict);
+            Iterator<BPString> keys = dict.keySet().iterator();
+            Iterator<BPString> expectedKeys = expected.keySet().iterator();
+            while (dict.size() > threshold - 2) {
+                keys.next();
+                keys.remove();
+                expectedKeys.next();
+                expectedKeys.remove();
+                assertSameEntries(expected, dict);
+            }
+            // and back over it, with the new keys going on the end
+            for (int i=0; i< 4; i++) {
+                dict.with("again" + i, i);
+                expected.put(BPString.get("again" + i), BPInt.get(i));
+                assertSameEntries(expected, dict);
+            }
+        }
+    }
+
+    private static void assertSameEntries(Map<BPString, BPItem> expected, BPDict dict) {
+        Assert.assertEquals(expected, dict);
+        Assert.assertEquals(dict, expected);
+        Assert.assertEquals(expected.size(), dict.size());
+        Assert.assertEquals(new ArrayList<BPString>(expected.keySet()), new ArrayList<BPString>(dict.keySet()));
+        for (Map.Entry<BPString, BPItem> entry : expected.entrySet()) {
+            Assert.assertTrue(dict.containsKey(entry.getKey().getValue()));
+            Assert.assertEquals(entry.getValue(), dict.get(entry.getKey()));
+        }
+        Assert.assertNull(dict.get("missing"));
+    }
+
+    @Test
+    public void TestLargeArrayIndexedAccess() throws BinaryPlistException {
+        BPArray array = new BPArray();
+        for (int i=0; i< 100000; i++) {
+            array.with(i);
+        }
+        BPArray newArray = (BPArray) BinaryPlist.decode(BinaryPlist.encode(array));
+        Assert.assertEquals(array, newArray);
+        for (int i=0; i< newArray.size(); i++) {
+            Assert.assertEquals(i, ((BPInt) newArray.get(i)).getValue());
+        }
+        newArray.add(0, BPString.get("first"));
+        Assert.assertEquals(BPInt.get(99999), newArray.remove(newArray.size() - 1));
+        Assert.assertEquals(100000, newArray.size());
+        Assert.assertEquals("first", newArray.get(0).toString());
+        Assert.assertEquals(BPInt.get(0), newArray.get(1));
+    }
+
+    @Test
+    public void TestCachedHashesFollowNestedChanges() {
+        BPDict inner = new BPDict().with("key", 1);
+        BPArray middle = new BPArray().with(inner);
+        BPSet outer = new BPSet().with(middle);
+        int before = outer.hashCode();
+        Assert.assertEquals(before, outer.hashCode());
+
+        inner.with("key", 2);
+        BPSet expected = new BPSet().with(new BPArray().with(new BPDict().with("key", 2)));
+        Assert.assertEquals(expected.hashCode(), outer.hashCode());
+        Assert.assertEquals(expected, outer);
+
+        // changes made through views count too
+        ListIterator<BPItem> items = middle.listIterator();
+        items.next();
+        items.set(BPString.get("replaced"));
+        Assert.assertEquals(new BPArray().with("replaced").hashCode(), middle.hashCode());
+        inner.entrySet().iterator().next().setValue(BPInt.get(3));
+        Assert.assertEquals(new BPDict().with("key", 3).hashCode(), inner.hashCode());
+
+        BPSet dicts = new BPSet().with(new BPDict().with("a", 1)).with(new BPDict().with("b", 2));
+        Assert.assertTrue(dicts.contains(new BPDict().with("b", 2)));
+        Assert.assertFalse(dicts.contains(new BPDict().with("b", 3)));
+
+        // a collection in two others, which were built apart
+        BPDict shared = new BPDict().with("key", 1);
+        BPArray first = new BPArray().with(shared);
+        BPArray second = new BPArray();
+        int empty = second.hashCode();
+        second.add(shared);
+        Assert.assertFalse(empty == second.hashCode());
+        shared.with("key", 2);
+        BPArray expectedArray = new BPArray().with(new BPDict().with("key", 2));
+        Assert.assertEquals(expectedArray.hashCode(), first.hashCode());
+        Assert.assertEquals(expectedArray.hashCode(), second.hashCode());
+        Assert.assertEquals(expectedArray, first);
+    }
+
+    @Test
+    public void TestCachedHashesFollowChangesToDecodedTrees() throws BinaryPlistException {
+        BPSet original = new BPSet().with(new BPArray().with(new BPDict().with("key", 1)));
+        BPSet outer = (BPSet) BinaryPlist.decode(BinaryPlist.encode(original));
+        BPDict inner = (BPDict) ((BPArray) outer.iterator().next()).get(0);
+        Assert.assertEquals(original.hashCode(), outer.hashCode());
+
+        inner.with("key", 2);
+        BPSet expected = new BPSet().with(new BPArray().with(new BPDict().with("key", 2)));
+        Assert.assertEquals(expected.hashCode(), outer.hashCode());
+
+        // a change in one decoded tree leaves another's cached hashes alone
+        BPSet other = (BPSet) BinaryPlist.decode(BinaryPlist.encode(original));
+        Assert.assertEquals(original.hashCode(), other.hashCode());
+        inner.with("key", 3);
+        Assert.assertEquals(original.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void TestParallelDecoding() throws BinaryPlistException {
+        BPDict shared = new BPDict().with("shared", true);
+        BPDict root = new BPDict();
+        for (int i=0; i< 50; i++) {
+            BPArray records = new BPArray();
+            for (int j=0; j< 200; j++) {
+                records.with(new BPDict().with("id", i * 1000 + j).with("name", "record" + j).with("common", shared));
+            }
+            root.with("subtree" + i, records);
+        }
+        root.with("set", new BPSet().with(new BPSet().with(1).with(2)).with(new BPArray().with(3)));
+        byte[] bytes = BinaryPlist.encode(root);
+
+        BPDict sequential = (BPDict) BinaryPlist.decode(bytes);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BPDict parallel = (BPDict) BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().parallel(pool));
+            Assert.assertEquals(sequential, parallel);
+            Assert.assertEquals(BinaryPlist.dump(sequential), BinaryPlist.dump(parallel));
+            BPDict first = (BPDict) ((BPArray) parallel.get("subtree0")).get(0);
+            BPDict last = (BPDict) ((BPArray) parallel.get("subtree49")).get(199);
+            Assert.assertSame(first.get("common"), last.get("common"));
+            Assert.assertTrue(((BPSet) parallel.get("set")).contains(new BPSet().with(2).with(1)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void TestParallelDecodingWithPooledKeys() throws BinaryPlistException {
+        BPArray root = new BPArray();
+        for (int i=0; i< 20; i++) {
+            // "name" and "id" are values as well as keys
+            root.with(new BPDict().with("id", i).with("name", "name").with("kind", "id"));
+        }
+        byte[] bytes = BinaryPlist.encode(root);
+        BPStringPool stringPool = new BPStringPool(16, 16);
+        BPArray sequential = (BPArray) BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().stringPool(stringPool));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BPArray parallel = (BPArray) BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().stringPool(stringPool).parallel(pool));
+            Assert.assertEquals(sequential, parallel);
+            assertSameSharing(sequential, parallel, new IdentityHashMap<BPItem, BPItem>());
+            BPDict dict = (BPDict) parallel.get(0);
+            Assert.assertNotSame(dict.keySet().iterator().next(), dict.get("kind"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // checks that two decodes of the same plist share keys through the pool, and nothing else
+    private static void assertSameSharing(BPItem expected, BPItem actual, Map<BPItem, BPItem> seen) {
+        if (seen.containsKey(expected)) {
+            Assert.assertSame(seen.get(expected), actual);
+            return;
+        }
+        Assert.assertFalse(seen.containsValue(actual));
+        seen.put(expected, actual);
+        if (expected instanceof BPDict) {
+            Iterator<Map.Entry<BPString, BPItem>> actualEntries = ((BPDict) actual).entrySet().iterator();
+            for (Map.Entry<BPString, BPItem> entry : ((BPDict) expected).entrySet()) {
+                Map.Entry<BPString, BPItem> actualEntry = actualEntries.next();
+                Assert.assertSame(entry.getKey(), actualEntry.getKey());
+                assertSameSharing(entry.getValue(), actualEntry.getValue(), seen);
+            }
+        } else if (expected instanceof BPArray) {
+            Iterator<BPItem> actualItems = ((BPArray) actual).iterator();
+            for (BPItem item : (BPArray) expected) {
+                assertSameSharing(item, actualItems.next(), seen);
+            }
+        }
+    }
+
+    @Test
+    public void TestUnreachableObjectsNotRead() throws BinaryPlistException {
+        // object 0 is an array with a bad ref, but the top object is the string "a"
+        ByteBuffer buffer = ByteBuffer.allocate(46);
+        buffer.put("bplist00".getBytes()).put((byte) 0xa1).put((byte) 5).put((byte) 0x51).put((byte) 'a');
+        buffer.put((byte) 8).put((byte) 10);
+        buffer.position(46 - 26);
+        buffer.put((byte) 1).put((byte) 1).putLong(2).putLong(1).putLong(12);
+        buffer.flip();
+        for (BinaryPlistDecoder.Options options : Arrays.asList(new BinaryPlistDecoder.Options(), new BinaryPlistDecoder.Options().parallel(true))) {
+            Assert.assertEquals(BPString.get("a"), BinaryPlist.decode(buffer, options));
+        }
+    }
+
+    @Test
+    public void TestParallelEncoding() throws BinaryPlistException, IOException {
+        BPArray root = new BPArray();
+        for (int i=0; i< 5000; i++) {
+            root.with(new BPDict().with("id", i).with("name", UNICODE_STRING_1 + i).with("data", new BPData(new byte[i % 50])));
+        }
+        byte[] sequential = BinaryPlist.encode(root);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            BinaryPlistEncoder.Options options = new BinaryPlistEncoder.Options().parallel(pool);
+            Assert.assertArrayEquals(sequential, BinaryPlist.encode(root, options));
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            BinaryPlist.encode(root, Channels.newChannel(stream), options);
+            Assert.assertArrayEquals(sequential, stream.toByteArray());
+            Assert.assertArrayEquals(BinaryPlist.encode(root, new BinaryPlistEncoder.Options().uniqueCollections(true)),
+                    BinaryPlist.encode(root, new BinaryPlistEncoder.Options().uniqueCollections(true).parallel(pool)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void TestDecodingNestedSets() throws BinaryPlistException {
+        BPSet set = new BPSet()
+                .with(new BPSet().with(new BPSet().with("deep")))
+                .with(new BPDict().with("key", new BPSet().with(1)));
+        BPSet newSet = (BPSet) BinaryPlist.decode(BinaryPlist.encode(set));
+        Assert.assertEquals(set, newSet);
+        Assert.assertTrue(newSet.contains(new BPSet().with(new BPSet().with("deep"))));
+        Assert.assertTrue(newSet.contains(new BPDict().with("key", new BPSet().with(1))));
+    }
+
+    @Test
+    public void TestPooledKeysShared() throws BinaryPlistException {
+        byte[] bytes = BinaryPlist.encode(new BPDict()
+                .with("key", "value")
+                .with(UNICODE_STRING_2, "unicode")
+                .with("a very long key which won't go in the pool", "long"));
+        BPStringPool pool = new BPStringPool(16, 16);
+        BinaryPlistDecoder.Options options = new BinaryPlistDecoder.Options().stringPool(pool);
+        BPDict dict1 = (BPDict) BinaryPlist.decode(bytes, options);
+        BPDict dict2 = (BPDict) BinaryPlist.decode(bytes, options);
+        Assert.assertEquals(dict1, dict2);
+        Assert.assertEquals("value", dict2.get("key", "FAIL"));
+        Assert.assertEquals("long", dict2.get("a very long key which won't go in the pool", "FAIL"));
+
+        Iterator<BPString> keys1 = dict1.keySet().iterator();
+        Iterator<BPString> keys2 = dict2.keySet().iterator();
+        Assert.assertSame(keys1.next(), keys2.next());
+        // only short ASCII keys are pooled
+        Assert.assertNotSame(keys1.next(), keys2.next());
+        Assert.assertNotSame(keys1.next(), keys2.next());
+        // values aren't
+        Assert.assertNotSame(dict1.get("key"), dict2.get("key"));
+    }
+
+    @Test
+    public void TestStreamingReader() throws BinaryPlistException {
+        BPDict dict = new BPDict()
+                .with("name", UNICODE_STRING_1)
+                .with("count", 3)
+                .with("flag", true)
+                .with("skipped", new BPArray().with(1).with(2))
+                .with("nested", new BPDict().with("inner", "value"));
+        dict.put(BPString.get("big"), BPInt.get(4000000000L));
+        final StringBuilder events = new StringBuilder();
+        new BinaryPlistReader(BinaryPlist.encode(dict)).read(new BinaryPlistHandlerSupport() {
+            @Override
+            public boolean startDict(int size) {
+                events.append("{").append(size).append(" ");
+                return true;
+            }
+
+            @Override
+            public void key(CharSequence key) {
+                events.append(key).append("=");
+            }
+
+            @Override
+            public void endDict() {
+                events.append("} ");
+            }
+
+            @Override
+            public boolean startArray(int size) {
+                events.append("[").append(size).append("] ");
+                return false;
+            }
+
+            @Override
+            public void string(CharSequence value) {
+                events.append(value).append(" ");
+            }
+
+            @Override
+            public void integer(long value) {
+                events.append(value).append(" ");
+            }
+
+            @Override
+            public void bool(boolean value) {
+                events.append(value).append(" ");
+            }
+        });
+        Assert.assertEquals("{6 name=" + UNICODE_STRING_1 + " count=3 flag=true skipped=[2] nested={1 inner=value } big=4000000000 } ",
+                events.toString());
+    }
+
+    @Test(expected = BinaryPlistException.class)
+    public void TestStreamingReaderRejectsCycles() throws BinaryPlistException {
+        // an array whose only item is itself
+        ByteBuffer buffer = ByteBuffer.allocate(43);
+        buffer.put("bplist00".getBytes()).put((byte) 0xa1).put((byte) 0).put((byte) 8);
+        buffer.position(43 - 26);
+        buffer.put((byte) 1).put((byte) 1).putLong(1).putLong(0).putLong(10);
+        buffer.flip();
+        new BinaryPlistReader(buffer).read(new BinaryPlistHandlerSupport());
+    }
+
+    @Test
+    public void TestBadRefReportedByDecode() throws BinaryPlistException {
+        // an array whose only item is object 5, in a plist with one object
+        ByteBuffer buffer = ByteBuffer.allocate(43);
+        buffer.put("bplist00".getBytes()).put((byte) 0xa1).put((byte) 5).put((byte) 8);
+        buffer.position(43 - 26);
+        buffer.put((byte) 1).put((byte) 1).putLong(1).putLong(0).putLong(10);
+        buffer.flip();
+        for (BinaryPlistDecoder.Options options : Arrays.asList(new BinaryPlistDecoder.Options(), new BinaryPlistDecoder.Options().parallel(true))) {
+            try {
+                BinaryPlist.decode(buffer, options);
+                Assert.fail("Decoded a bad ref");
+            } catch (BinaryPlistException e) {
+                // expected
+            }
+        }
+        // a lazy decode only finds out when the array is used
+        BPArray array = (BPArray) BinaryPlist.decode(buffer, new BinaryPlistDecoder.Options().lazy(true));
+        try {
+            array.size();
+            Assert.fail("Expanded a bad ref");
+        } catch (BinaryPlistDecoder.DecodingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void TestDataLengthPastEndRejected() {
+        // 100 bytes of data in a 44 byte plist, at the start of a bigger array
+        byte[] array = new byte[200];
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, 44);
+        buffer.put("bplist00".getBytes()).put((byte) 0x4f).put((byte) 0x10).put((byte) 100).put((byte) 8);
+        buffer.position(44 - 26);
+        buffer.put((byte) 1).put((byte) 1).putLong(1).putLong(0).putLong(11);
+        buffer.flip();
+        try {
+            BinaryPlist.decode(buffer);
+            Assert.fail("Read data past the end of the plist");
+        } catch (BinaryPlistException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void TestBadLengthReportedBySelect() throws BinaryPlistException {
+        // an array whose only item is data with something other than an int for its length
+        ByteBuffer buffer = ByteBuffer.allocate(46);
+        buffer.put("bplist00".getBytes()).put((byte) 0xa1).put((byte) 1).put((byte) 0x4f).put((byte) 0x55);
+        buffer.put((byte) 8).put((byte) 10);
+        buffer.position(46 - 26);
+        buffer.put((byte) 1).put((byte) 1).putLong(2).putLong(0).putLong(12);
+        byte[] bytes = buffer.array();
+        try {
+            BinaryPlist.select(bytes, "[0]");
+            Assert.fail("Selected data with a bad length");
+        } catch (BinaryPlistException e) {
+            // expected
+        }
+        try {
+            BinaryPlist.decode(bytes);
+            Assert.fail("Decoded data with a bad length");
+        } catch (BinaryPlistException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void TestSelectingPaths() throws BinaryPlistException {
+        BPArray devices = new BPArray();
+        for (int i=0; i< 5; i++) {
+            devices.with(new BPDict().with("serial", "SN" + i).with("slot", i));
+        }
+        BPDict root = new BPDict()
+                .with("devices", devices)
+                .with("dotted.key", "dotted")
+                .with(UNICODE_STRING_1, new BPArray().with(7));
+        byte[] bytes = BinaryPlist.encode(root);
+
+        Assert.assertEquals(BPString.get("SN3"), BinaryPlist.select(bytes, "root.devices[3].serial"));
+        Assert.assertEquals(BPInt.get(1), BinaryPlist.select(bytes, "devices[1].slot"));
+        Assert.assertEquals(devices.get(2), BinaryPlist.select(bytes, "root.devices[2]"));
+        Assert.assertEquals(root, BinaryPlist.select(bytes, "root"));
+        Assert.assertEquals(BPString.get("dotted"), BinaryPlist.select(bytes, "dotted\\.key"));
+        Assert.assertEquals(BPInt.get(7), BinaryPlist.select(bytes, UNICODE_STRING_1 + "[0]"));
+
+        Assert.assertNull(BinaryPlist.select(bytes, "root.devices[5]"));
+        Assert.assertNull(BinaryPlist.select(bytes, "root.devices.serial"));
+        Assert.assertNull(BinaryPlist.select(bytes, "root.missing"));
+        Assert.assertNull(BinaryPlist.select(bytes, "root[0]"));
+
+        // one reader can serve several paths
+        BinaryPlistReader reader = new BinaryPlistReader(bytes);
+        Assert.assertEquals(BPString.get("SN0"), reader.select(PlistPath.compile("devices[0].serial")));
+        Assert.assertEquals(BPString.get("SN4"), reader.select(PlistPath.compile("devices[4].serial")));
+    }
+
+    @Test
+    public void TestMalformedPaths() {
+        String[] paths = {"root.devices[", "root.devices[]", "root.devices[x]", "root.devices[1]x", "key\\"};
+        for (String path : paths) {
+            try {
+                PlistPath.compile(path);
+                Assert.fail("Compiled " + path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void TestSelectingFromWideDicts() throws BinaryPlistException {
+        BPDict root = new BPDict();
+        for (int i=0; i< 500; i++) {
+            root.with("key" + i, i);
+            root.with(UNICODE_STRING_2 + i, -i);
+        }
+        // "Aa" and "BB" have the same hash
+        root.with("Aa", "first").with("BB", "second");
+        BinaryPlistReader reader = new BinaryPlistReader(BinaryPlist.encode(root));
+        for (int i=0; i< 500; i++) {
+            Assert.assertEquals(BPInt.get(i), reader.select(PlistPath.compile("key" + i)));
+            Assert.assertEquals(BPInt.get(-i), reader.select(PlistPath.compile(UNICODE_STRING_2 + i)));
+        }
+        Assert.assertEquals(BPString.get("first"), reader.select(PlistPath.compile("Aa")));
+        Assert.assertEquals(BPString.get("second"), reader.select(PlistPath.compile("BB")));
+        Assert.assertNull(reader.select(PlistPath.compile("key500")));
+        Assert.assertNull(reader.select(PlistPath.compile("root.")));
+
+        // enough wide dicts for the reader's table of their indexes to grow
+        BPArray dicts = new BPArray();
+        for (int i=0; i< 20; i++) {
+            BPDict dict = new BPDict();
+            for (int j=0; j< 100; j++) {
+                dict.with("key" + j, i * 100 + j);
+            }
+            dicts.with(dict);
+        }
+        reader = new BinaryPlistReader(BinaryPlist.encode(dicts));
+        for (int pass=0; pass< 3; pass++) {
+            for (int i=0; i< 20; i++) {
+                Assert.assertEquals(BPInt.get(i * 100 + 99), reader.select(PlistPath.compile("[" + i + "].key99")));
+            }
+        }
+    }
+
+    /**
+     * Builds a plist holding the array ["a", "bc"] by hand, using the given widths for
+     * offsets and refs.
+     */
+    private static byte[] plistWithWidths(int offsetSize, int refSize) {
+        int arrayLength = 1 + 2 * refSize;
+        int tableOffset = 8 + arrayLength + 2 + 3;
+        ByteBuffer buffer = ByteBuffer.allocate(tableOffset + 3 * offsetSize + 32);
+        buffer.put("bplist00".getBytes());
+        buffer.put((byte) 0xa2);
+        putSized(buffer, 1, refSize);
+        putSized(buffer, 2, refSize);
+        buffer.put((byte) 0x51).put((byte) 'a');
+        buffer.put((byte) 0x52).put((byte) 'b').put((byte) 'c');
+        putSized(buffer, 8, offsetSize);
+        putSized(buffer, 8 + arrayLength, offsetSize);
+        putSized(buffer, 8 + arrayLength + 2, offsetSize);
+        buffer.position(buffer.position() + 6);
+        buffer.put((byte) offsetSize).put((byte) refSize).putLong(3).putLong(0).putLong(tableOffset);
+        return buffer.array();
+    }
+
+    private static void putSized(ByteBuffer buffer, long value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            buffer.put((byte) (value >> shift));
+        }
+    }
+
+    @Test
+    public void TestAllOffsetAndRefWidths() throws BinaryPlistException {
+        BPArray expected = new BPArray().with("a").with("bc");
+        for (int offsetSize = 1; offsetSize <= 8; offsetSize++) {
+            for (int refSize = 1; refSize <= 8; refSize++) {
+                byte[] bytes = plistWithWidths(offsetSize, refSize);
+                Assert.assertEquals(expected, BinaryPlist.decode(bytes));
+                Assert.assertEquals(BPString.get("bc"), BinaryPlist.select(bytes, "[1]"));
+            }
+        }
+    }
+
+    @Test
+    public void TestDecodingSegmentedData() throws BinaryPlistException {
+        BPDict dict = new BPDict()
+                .with("name", UNICODE_STRING_1)
+                .with("data", new BPData(new byte[100]))
+                .with("numbers", new BPArray().with(1).with(70000).with(Integer.MAX_VALUE))
+                .with("nested", new BPDict().with("inner", ASCII_STRING_3));
+        dict.put(BPString.get("long"), BPInt.get(1L << 40));
+        byte[] bytes = BinaryPlist.encode(dict);
+
+        // segments of 16 bytes, so plenty of values straddle two of them
+        int shift = 4;
+        ByteBuffer[] segments = new ByteBuffer[(bytes.length + 15) >> shift];
+        for (int i=0; i< segments.length; i++) {
+            int start = i << shift;
+            segments[i] = ByteBuffer.wrap(bytes, start, Math.min(16, bytes.length - start));
+        }
+        BinaryPlistReader reader = new BinaryPlistReader(BinaryPlistData.segmented(segments, shift));
+        // BPData hasn't got equals, so compare the re-encoded bytes
+        Assert.assertArrayEquals(bytes, BinaryPlist.encode(reader.decoder(new BinaryPlistDecoder.Options()).decode()));
+        Assert.assertEquals(BPString.get(ASCII_STRING_3), reader.select(PlistPath.compile("nested.inner")));
+        Assert.assertEquals(BPInt.get(70000), reader.select(PlistPath.compile("numbers[1]")));
+
+        final int[] dataLength = new int[1];
+        reader.read(new BinaryPlistHandlerSupport() {
+            @Override
+            public void data(ByteBuffer value) {
+                dataLength[0] = value.remaining();
+            }
+        });
+        Assert.assertEquals(100, dataLength[0]);
+    }
+
+    @Test
+    public void TestOffsetAndRefWidths() {
+        Assert.assertEquals(1, BinaryPlistEncoder.bytesFor(255));
+        Assert.assertEquals(2, BinaryPlistEncoder.bytesFor(256));
+        Assert.assertEquals(2, BinaryPlistEncoder.bytesFor(65535));
+        Assert.assertEquals(4, BinaryPlistEncoder.bytesFor(65536));
+        Assert.assertEquals(4, BinaryPlistEncoder.bytesFor(0xffffffffL));
+        Assert.assertEquals(8, BinaryPlistEncoder.bytesFor(0x100000000L));
+    }
+
+    @Test
+    public void TestEncodingToFile() throws IOException, BinaryPlistException {
+        BPArray array = new BPArray();
+        for (int i=0; i< 70000; i++) {
+            array.with(i).with("String " + i);
+        }
+        File file = File.createTempFile("blister", ".plist");
+        try {
+            Path path = file.toPath();
+            BinaryPlist.encode(new BPArray().with("will be replaced"), path);
+            BinaryPlist.encode(array, path);
+            Assert.assertArrayEquals(BinaryPlist.encode(array), Files.readAllBytes(path));
+            Assert.assertEquals(array, BinaryPlist.decode(path));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void TestReusingDecoderAndEncoder() throws IOException, BinaryPlistException {
+        BPArray big = new BPArray();
+        for (int i=0; i< 70000; i++) {
+            big.with(i).with("String " + i);
+        }
+        List<BPItem> plists = new ArrayList<BPItem>();
+        plists.add(new BPDict().with("key", "value").with("number", 3).with("set", new BPSet().with("a").with("b")));
+        plists.add(big);
+        plists.add(new BPArray().with(new BPDict().with("key", "other value")).with(true).with(42));
+        plists.add(new BPDict().with("nested", new BPArray().with(new BPArray().with("x"))));
+
+        BinaryPlistEncoder encoder = new BinaryPlistEncoder();
+        BinaryPlistDecoder decoder = new BinaryPlistDecoder();
+        List<BPItem> decoded = new ArrayList<BPItem>();
+        for (BPItem plist : plists) {
+            byte[] bytes = encoder.encode(plist);
+            Assert.assertArrayEquals(BinaryPlist.encode(plist), bytes);
+            decoded.add(decoder.decode(bytes));
+        }
+        // nothing decoded earlier is disturbed by reusing the decoder
+        Assert.assertEquals(plists, decoded);
+
+        try {
+            decoder.decode(new byte[64]);
+            Assert.fail("Decoded rubbish");
+        } catch (BinaryPlistException e) {
+            // expected
+        }
+        Assert.assertEquals(plists.get(2), decoder.decode(encoder.encode(plists.get(2))));
+
+        // a lazy decoder gives each plist a decoder of its own
+        BinaryPlistDecoder lazyDecoder = new BinaryPlistDecoder(new BinaryPlistDecoder.Options().lazy(true));
+        BPItem first = lazyDecoder.decode(BinaryPlist.encode(plists.get(0)));
+        BPItem second = lazyDecoder.decode(BinaryPlist.encode(plists.get(3)));
+        Assert.assertEquals(plists.get(3), second);
+        Assert.assertEquals(plists.get(0), first);
+
+        BinaryPlistEncoder uniquing = new BinaryPlistEncoder(new BinaryPlistEncoder.Options().uniqueCollections(true));
+        for (BPItem plist : plists) {
+            Assert.assertArrayEquals(BinaryPlist.encode(plist, new BinaryPlistEncoder.Options().uniqueCollections(true)), uniquing.encode(plist));
+        }
+    }
+
+    @Test
+    public void TestFrozenDecoding() throws Exception {
+        final BPDict dict = new BPDict()
+                .with("name", "config")
+                .with("list", new BPArray().with(1).with(new BPDict().with("deep", true)))
+                .with("set", new BPSet().with("a").with(new BPArray().with("b")));
+        byte[] bytes = BinaryPlist.encode(dict);
+        final BPDict frozen = (BPDict) BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().frozen(true));
+        Assert.assertTrue(frozen.isFrozen());
+        Assert.assertEquals(dict, frozen);
+        Assert.assertEquals(dict.hashCode(), frozen.hashCode());
+        BPArray list = (BPArray) frozen.get("list");
+        Assert.assertTrue(list.isFrozen());
+        Assert.assertTrue(((BPDict) list.get(1)).isFrozen());
+
+        // frozen overrides lazy
+        BPDict lazilyFrozen = (BPDict) BinaryPlist.decode(bytes, new BinaryPlistDecoder.Options().frozen(true).lazy(true));
+        Assert.assertTrue(((BPSet) lazilyFrozen.get("set")).isFrozen());
+
+        final BPSet set = (BPSet) frozen.get("set");
+        final BPDict deep = (BPDict) list.get(1);
+        List<Runnable> changes = new ArrayList<Runnable>();
+        changes.add(new Runnable() { public void run() { frozen.with("name", "changed"); } });
+        changes.add(new Runnable() { public void run() { frozen.remove("name"); } });
+        changes.add(new Runnable() { public void run() { frozen.clear(); } });
+        changes.add(new Runnable() { public void run() { frozen.keySet().remove(BPString.get("name")); } });
+        changes.add(new Runnable() { public void run() { frozen.entrySet().iterator().next().setValue(BPNull.Instance); } });
+        changes.add(new Runnable() { public void run() { deep.put(BPString.get("deeper"), BPNull.Instance); } });
+        changes.add(new Runnable() { public void run() { ((BPArray) frozen.get("list")).add(BPNull.Instance); } });
+        changes.add(new Runnable() { public void run() { ((BPArray) frozen.get("list")).set(0, BPNull.Instance); } });
+        changes.add(new Runnable() { public void run() { ((BPArray) frozen.get("list")).subList(0, 1).clear(); } });
+        changes.add(new Runnable() { public void run() { set.add(BPNull.Instance); } });
+        changes.add(new Runnable() { public void run() {
+            Iterator<BPItem> iterator = set.iterator();
+            iterator.next();
+            iterator.remove();
+        } });
+        for (Runnable change : changes) {
+            try {
+                change.run();
+                Assert.fail("Changed a frozen collection");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(dict, frozen);
+
+        // readers on several threads at once
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i=0; i< 16; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return frozen.equals(dict) && frozen.hashCode() == dict.hashCode()
+                                && "config".equals(frozen.get("name", ""));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void TestFreezingBuiltTrees() {
+        BPArray inner = new BPArray().with("x");
+        BPArray array = new BPArray().with(inner).with(inner);
+        int hash = array.hashCode();
+        array.freeze();
+        Assert.assertTrue(inner.isFrozen());
+        Assert.assertEquals(hash, array.hashCode());
+        try {
+            inner.add(BPNull.Instance);
+            Assert.fail("Changed a frozen array");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        BPArray loop = new BPArray();
+        loop.add(new BPDict().with("loop", loop));
+        try {
+            loop.freeze();
+            Assert.fail("Froze a collection which contains itself");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void TestXXHash64() {
+        byte[] counting = new byte[100];
+        for (int i=0; i< counting.length; i++) {
+            counting[i] = (byte) i;
+        }
+        Assert.assertEquals(0xef46db3751d8e999L, XXHash64.hash(ByteBuffer.allocate(0), 0));
+        Assert.assertEquals(0x44bc2cf5ad770999L, XXHash64.hash(ByteBuffer.wrap("abc".getBytes()), 0));
+        Assert.assertEquals(0xcb54395bbf895909L, XXHash64.hash(ByteBuffer.wrap("abc".getBytes()), 1234567));
+        Assert.assertEquals(0xfbcea83c8a378bf1L, XXHash64.hash(ByteBuffer.wrap("Nobody inspects the spammish repetition".getBytes()), 0));
+        Assert.assertEquals(0x6ac1e58032166597L, XXHash64.hash(ByteBuffer.wrap(counting), 0));
+        Assert.assertEquals(0x2723ac91c8c8c396L, XXHash64.hash(ByteBuffer.wrap(counting), 1234567));
+        // only the remaining bytes count
+        ByteBuffer offset = ByteBuffer.allocate(103);
+        offset.position(3);
+        offset.put(counting);
+        offset.position(3);
+        Assert.assertEquals(0x6ac1e58032166597L, XXHash64.hash(offset, 0));
+        Assert.assertEquals(3, offset.position());
+    }
+
+    @Test
+    public void TestCacheSizeEstimates() {
+        // keys count
+        long shortKey = BinaryPlistCache.estimateSize(new BPDict().with("k", 1));
+        long longKey = BinaryPlistCache.estimateSize(new BPDict().with("a much longer key than the other", 1));
+        Assert.assertEquals(shortKey + "a much longer key than the other".length() - 1, longKey);
+        // an object counts once, however often it appears
+        BPString value = BPString.get("a shared value");
+        BPArray once = new BPArray().with(value);
+        BPArray twice = new BPArray().with(value).with(value);
+        BPArray copies = new BPArray().with(value).with(BPString.get("a shared value"));
+        Assert.assertTrue(BinaryPlistCache.estimateSize(twice) < BinaryPlistCache.estimateSize(copies));
+        Assert.assertTrue(BinaryPlistCache.estimateSize(once) < BinaryPlistCache.estimateSize(twice));
+    }
+
+    @Test
+    public void TestDecodingThroughCache() throws BinaryPlistException {
+        byte[] a = BinaryPlist.encode(new BPDict().with("key", "value a").with("list", new BPArray().with(1).with(2)));
+        byte[] b = BinaryPlist.encode(new BPDict().with("key", "value b").with("list", new BPArray().with(1).with(2)));
+        byte[] c = BinaryPlist.encode(new BPDict().with("key", "value c").with("list", new BPArray().with(1).with(2)));
+
+        BinaryPlistCache probe = new BinaryPlistCache(Long.MAX_VALUE);
+        probe.decode(a);
+        long entrySize = probe.getEstimatedSize();
+        Assert.assertTrue(entrySize > a.length);
+
+        BinaryPlistCache cache = new BinaryPlistCache(2 * entrySize);
+        BPDict first = (BPDict) cache.decode(a);
+        Assert.assertTrue(first.isFrozen());
+        Assert.assertEquals(BinaryPlist.decode(a), first);
+        // same content, different array
+        Assert.assertSame(first, cache.decode(a.clone()));
+        ByteBuffer buffer = ByteBuffer.allocate(a.length + 10);
+        buffer.position(10);
+        buffer.put(a);
+        buffer.position(10);
+        Assert.assertSame(first, cache.decode(buffer));
+        Assert.assertEquals(10, buffer.position());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.decode(b);
+        cache.decode(a); // now b is the least recently used
+        cache.decode(c);
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(2 * entrySize, cache.getEstimatedSize());
+        Assert.assertSame(first, cache.decode(a));
+        long misses = cache.getMisses();
+        cache.decode(b);
+        Assert.assertEquals(misses + 1, cache.getMisses());
+
+        // too big to cache at all
+        BinaryPlistCache tiny = new BinaryPlistCache(10);
+        Assert.assertEquals(first, tiny.decode(a));
+        Assert.assertNotSame(tiny.decode(a), tiny.decode(a));
+        Assert.assertEquals(0, tiny.getEntryCount());
+        Assert.assertEquals(0, tiny.getHits());
+    }
+
+    @Test
+    public void TestUniquingEqualValues() throws BinaryPlistException {
+        byte[] blob = new byte[100];
+        BPArray array = new BPArray()
+                .with(new BPDict().with("key", "value").with("data", new BPData(blob)))
+                .with(new BPDict().with("key", "value").with("data", new BPData(blob.clone())))
+                .with(new BPArray().with(1).with(2))
+                .with(new BPArray().with(2).with(1));
+        byte[] plain = BinaryPlist.encode(array);
+        byte[] uniqued = BinaryPlist.encode(array, new BinaryPlistEncoder.Options().uniqueCollections(true));
+        Assert.assertTrue(uniqued.length < plain.length);
+
+        BPArray newArray = (BPArray) BinaryPlist.decode(uniqued);
+        Assert.assertEquals(4, newArray.size());
+        Assert.assertSame(newArray.get(0), newArray.get(1));
+        Assert.assertEquals("value", ((BPDict) newArray.get(0)).get("key", ""));
+        Assert.assertEquals(array.get(2), newArray.get(2));
+        Assert.assertEquals(array.get(3), newArray.get(3));
+        // same children, different order
+        Assert.assertNotSame(newArray.get(2), newArray.get(3));
+
+        // data longer than the limit is written out each time it appears
+        byte[] unlimited = BinaryPlist.encode(array, new BinaryPlistEncoder.Options().maxUniquedDataLength(99));
+        Assert.assertTrue(unlimited.length > plain.length + 100);
+
+        // equal UIDs are written once, like data
+        byte[] sameUids = BinaryPlist.encode(new BPArray().with(new BPUid(new byte[] {7})).with(new BPUid(new byte[] {7})));
+        byte[] differentUids = BinaryPlist.encode(new BPArray().with(new BPUid(new byte[] {7})).with(new BPUid(new byte[] {8})));
+        Assert.assertTrue(sameUids.length < differentUids.length);
+    }
+
     @Test
     public void TestEnumeratedConstants() throws BinaryPlistException {
         BPDict dict = new BPDict()
@@ -274,6 +1264,14 @@ public class TestBPItems {
         }
     }
 
+    @Test
+    public void TestReals() {
+        byte[] doubleBytes = ByteBuffer.allocate(8).putDouble(-1234.5678).array();
+        Assert.assertEquals(-1234.5678, BPReal.from(doubleBytes).getDoubleValue(), 0.0);
+        byte[] floatBytes = ByteBuffer.allocate(4).putFloat(3.25f).array();
+        Assert.assertEquals(3.25f, BPReal.from(floatBytes).getFloatValue(), 0.0f);
+    }
+
     @Test
     public void TestBPArrayWithPointerSize1() throws IOException, BinaryPlistException {
         BPArray array = new BPArray();
@@ -310,6 +1308,19 @@ public class TestBPItems {
 
     }
 
+    @Test
+    public void TestEncodingToStream() throws IOException, BinaryPlistException {
+        BPArray array = new BPArray();
+        for (int i=0; i< 32770; i++) {
+            array.with(i).with("String " + i);
+        }
+        // big enough that the encoder has to flush to the stream several times
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BinaryPlist.encode(array, stream);
+        Assert.assertArrayEquals(BinaryPlist.encode(array), stream.toByteArray());
+        Assert.assertEquals(array, BinaryPlist.decode(stream.toByteArray()));
+    }
+
     @Test
     public void testEverythingICanThinkOf() throws BinaryPlistException {
         BPDict dict = new BPDict()